@@ -18,6 +18,7 @@
  */
 package com.inadco.ecoadapters;
 
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.lang.reflect.InvocationTargetException;
@@ -26,8 +27,10 @@ import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URLDecoder;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
@@ -35,6 +38,7 @@ import java.util.StringTokenizer;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.springframework.core.io.DefaultResourceLoader;
@@ -58,6 +62,24 @@ public final class EcoUtil {
 
     private final static String NET_ENCODING = "utf-8";
 
+    /**
+     * system property to override max number of descriptor set files kept
+     * built in the jvm-wide cache.
+     */
+    public static final String  DESCRIPTOR_CACHE_SIZE_PROP    = "ecoadapters.descriptor.cache.size";
+    private static final int    DEFAULT_DESCRIPTOR_CACHE_SIZE = 32;
+
+    /**
+     * jvm-wide cache of the descriptor sets loaded from filesystem. Every udf,
+     * column spec and serde instance used to reload and rebuild the same
+     * FileDescriptorSet over and over again, which is fairly expensive. Entries
+     * are validated against file modification time and length, so updating a
+     * descriptor file in hdfs is still picked up by new function instances.
+     */
+    private static final Map<String, CachedDescriptorSet> DESCRIPTOR_CACHE =
+        new LruMap<String, CachedDescriptorSet>(Integer.getInteger(DESCRIPTOR_CACHE_SIZE_PROP,
+                                                                   DEFAULT_DESCRIPTOR_CACHE_SIZE));
+
     public static Descriptor inferDescriptorFromClassName(String msgClsName) throws Throwable {
         if (msgClsName == null)
             throw new RuntimeException("messageClass option missing");
@@ -129,9 +151,14 @@ public final class EcoUtil {
         }
     }
 
+    /**
+     * infer file descriptors from a descriptor set file. The result is cached
+     * jvm-wide (see {@link #DESCRIPTOR_CACHE_SIZE_PROP}) so the returned map is
+     * not modifiable.
+     */
     public static Map<String, FileDescriptor> inferFileDescriptorsFromFilesystem(String descriptorUrl)
         throws IOException, URISyntaxException, DescriptorValidationException {
-        return buildFileDescriptors(loadDFS(descriptorUrl));
+        return getCachedDescriptorSet(descriptorUrl).m_fileDescriptors;
     }
 
     public static Map<String, FileDescriptor> inferFileDescriptorsFromStream(InputStream descriptorStream)
@@ -139,9 +166,14 @@ public final class EcoUtil {
         return buildFileDescriptors(loadFromStream(descriptorStream));
     }
 
+    /**
+     * infer top level message descriptors from a descriptor set file. Same as
+     * with {@link #inferFileDescriptorsFromFilesystem(String)}, the result is
+     * cached and not modifiable.
+     */
     public static Map<String, Descriptor> inferDescriptorsFromFilesystem(String descriptorUrl) throws IOException,
         URISyntaxException, DescriptorValidationException {
-        return buildMessageDescriptors(inferFileDescriptorsFromFilesystem(descriptorUrl).values());
+        return getCachedDescriptorSet(descriptorUrl).m_msgDescriptors;
     }
 
     public static Map<String, Descriptor> inferDescriptorsFromStream(InputStream descriptorStream) throws IOException,
@@ -159,27 +191,51 @@ public final class EcoUtil {
         return topDesc;
     }
 
-    private static FileDescriptorSet loadDFS(String descriptorUrl) throws URISyntaxException, IOException {
+    private static CachedDescriptorSet getCachedDescriptorSet(String descriptorUrl) throws URISyntaxException,
+        IOException, DescriptorValidationException {
 
         Configuration conf = new Configuration();
-        FileDescriptorSet fds;
         FileSystem fs = FileSystem.get(new URI(descriptorUrl), conf);
+        Path path = new Path(descriptorUrl);
+
+        FileStatus fstat;
         try {
-            Path path = new Path(descriptorUrl);
-            if (!fs.isFile(path))
-                throw new IOException(String.format("Can't find file '%s'", path.getName()));
+            fstat = fs.getFileStatus(path);
+        } catch (FileNotFoundException exc) {
+            fstat = null;
+        }
+        if (fstat == null || fstat.isDirectory())
+            throw new IOException(String.format("Can't find file '%s'", path.getName()));
 
-            FSDataInputStream fdis = fs.open(path);
-            try {
-                fds = FileDescriptorSet.parseFrom(fdis);
-            } finally {
-                fdis.close();
-            }
+        CachedDescriptorSet cached;
+        synchronized (DESCRIPTOR_CACHE) {
+            cached = DESCRIPTOR_CACHE.get(descriptorUrl);
+        }
+        if (cached != null && cached.m_modificationTime == fstat.getModificationTime()
+            && cached.m_length == fstat.getLen())
+            return cached;
+
+        // build outside of the lock. concurrent loaders of the same file may
+        // end up building it more than once, but that's harmless.
+        Map<String, FileDescriptor> fileDescriptors = buildFileDescriptors(loadDFS(fs, path));
+        cached =
+            new CachedDescriptorSet(fstat.getModificationTime(),
+                                    fstat.getLen(),
+                                    Collections.unmodifiableMap(fileDescriptors),
+                                    Collections.unmodifiableMap(buildMessageDescriptors(fileDescriptors.values())));
+        synchronized (DESCRIPTOR_CACHE) {
+            DESCRIPTOR_CACHE.put(descriptorUrl, cached);
+        }
+        return cached;
+    }
 
+    private static FileDescriptorSet loadDFS(FileSystem fs, Path path) throws IOException {
+        FSDataInputStream fdis = fs.open(path);
+        try {
+            return FileDescriptorSet.parseFrom(fdis);
         } finally {
-            // fs.close();// is it a singleton though?
+            fdis.close();
         }
-        return fds;
     }
 
     private static FileDescriptorSet loadFromStream(InputStream is) throws IOException {
@@ -282,4 +338,43 @@ public final class EcoUtil {
             return 1;
     }
 
+    private static final class CachedDescriptorSet {
+        private final long                        m_modificationTime;
+        private final long                        m_length;
+        private final Map<String, FileDescriptor> m_fileDescriptors;
+        private final Map<String, Descriptor>     m_msgDescriptors;
+
+        CachedDescriptorSet(long modificationTime,
+                            long length,
+                            Map<String, FileDescriptor> fileDescriptors,
+                            Map<String, Descriptor> msgDescriptors) {
+            super();
+            m_modificationTime = modificationTime;
+            m_length = length;
+            m_fileDescriptors = fileDescriptors;
+            m_msgDescriptors = msgDescriptors;
+        }
+    }
+
+    /**
+     * access-ordered map evicting least recently used entries beyond the
+     * capacity. Not synchronized.
+     */
+    private static final class LruMap<K, V> extends LinkedHashMap<K, V> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int         m_capacity;
+
+        LruMap(int capacity) {
+            super(16, 0.75f, true);
+            m_capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+            return size() > m_capacity;
+        }
+    }
+
 }
@@ -0,0 +1,365 @@
+/**
+ *
+ *  Copyright © 2010, 2011 Inadco, Inc. All rights reserved.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ *
+ */
+package com.inadco.ecoadapters;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.protobuf.AbstractMessageLite;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.Descriptors.Descriptor;
+import com.google.protobuf.Descriptors.FieldDescriptor;
+import com.google.protobuf.ExtensionRegistryLite;
+import com.google.protobuf.MessageLite;
+
+/**
+ * Streaming protobuf decoder. Walks message wire format directly with
+ * {@link CodedInputStream} against a field number table precomputed for the
+ * message descriptor, without materializing a DynamicMessage (which is boxed
+ * and map-backed per record). Fields that are not wanted are skipped on the
+ * wire without decoding.
+ * <P>
+ *
+ * Subclasses decide how values are converted and where they go (pig tuples,
+ * hive rows, cascading tuples etc.). Fields are identified by "slots" which
+ * are field indices in the message descriptor (
+ * {@link FieldDescriptor#getIndex()}).
+ * <P>
+ *
+ * Semantics follow protobuf parsing: last value wins for non-repeated fields,
+ * both packed and non-packed encoding is accepted for repeated primitives,
+ * fields with unexpected wire type are treated as unknown fields (skipped), and
+ * nesting is limited by the recursion limit of the input.
+ *
+ * @param <R>
+ *            record type the values are decoded into
+ */
+public abstract class ProtoWireReader<R> {
+
+    protected static final int          TAG_TYPE_BITS             = 3;
+    protected static final int          TAG_TYPE_MASK             = (1 << TAG_TYPE_BITS) - 1;
+
+    private static final int            WIRETYPE_VARINT           = 0;
+    private static final int            WIRETYPE_FIXED64          = 1;
+    protected static final int          WIRETYPE_LENGTH_DELIMITED = 2;
+    private static final int            WIRETYPE_START_GROUP      = 3;
+    private static final int            WIRETYPE_FIXED32          = 5;
+
+    // field numbers above this go into the sparse map rather than the dense
+    // lookup array
+    private static final int            MAX_DENSE_FIELD_NUMBER    = 4096;
+
+    protected final Descriptor          m_msgDesc;
+    protected final FieldDescriptor[]   m_fields;
+
+    private final boolean[]             m_wanted;
+    private final boolean[]             m_repeated;
+    private final boolean[]             m_packable;
+    private final int[]                 m_wireTypes;
+    private final int[]                 m_slotByNumber;
+    private final Map<Integer, Integer> m_sparseSlotByNumber;
+
+    /**
+     *
+     * @param msgDesc
+     *            message descriptor
+     * @param wanted
+     *            slots to decode, indexed by field index. null means all
+     *            fields.
+     */
+    protected ProtoWireReader(Descriptor msgDesc, boolean[] wanted) {
+        super();
+        m_msgDesc = msgDesc;
+
+        List<FieldDescriptor> fds = msgDesc.getFields();
+        int n = fds.size();
+        m_fields = fds.toArray(new FieldDescriptor[n]);
+        m_wanted = new boolean[n];
+        m_repeated = new boolean[n];
+        m_packable = new boolean[n];
+        m_wireTypes = new int[n];
+
+        int maxDenseNumber = 0;
+        for (int i = 0; i < n; i++) {
+            FieldDescriptor fd = m_fields[i];
+            m_wanted[i] = wanted == null || (i < wanted.length && wanted[i]);
+            m_repeated[i] = fd.isRepeated();
+            m_wireTypes[i] = wireTypeOf(fd);
+            m_packable[i] = m_repeated[i] && isPackableType(fd);
+            if (fd.getNumber() <= MAX_DENSE_FIELD_NUMBER && fd.getNumber() > maxDenseNumber)
+                maxDenseNumber = fd.getNumber();
+        }
+
+        m_slotByNumber = new int[maxDenseNumber + 1];
+        for (int i = 0; i <= maxDenseNumber; i++)
+            m_slotByNumber[i] = -1;
+        Map<Integer, Integer> sparse = null;
+        for (int i = 0; i < n; i++) {
+            int number = m_fields[i].getNumber();
+            if (number <= MAX_DENSE_FIELD_NUMBER)
+                m_slotByNumber[number] = i;
+            else {
+                if (sparse == null)
+                    sparse = new HashMap<Integer, Integer>();
+                sparse.put(number, i);
+            }
+        }
+        m_sparseSlotByNumber = sparse;
+    }
+
+    public Descriptor getMsgDesc() {
+        return m_msgDesc;
+    }
+
+    public boolean isWanted(int slot) {
+        return m_wanted[slot];
+    }
+
+    /**
+     * decode message from the array without copying it.
+     */
+    public void mergeFrom(byte[] buf, int offset, int length, R record) throws IOException {
+        CodedInputStream input = CodedInputStream.newInstance(buf, offset, length);
+        mergeFrom(input, record);
+        // a message can't end with an end group tag
+        input.checkLastTagWas(0);
+    }
+
+    /**
+     * decode message (or the part of it up to the current limit of the input)
+     * into the record.
+     */
+    public void mergeFrom(CodedInputStream input, R record) throws IOException {
+        while (true) {
+            int tag = input.readTag();
+            if (tag == 0)
+                return;
+            int slot = slotOf(tag >>> TAG_TYPE_BITS);
+            if (slot < 0 || !m_wanted[slot]) {
+                if (!input.skipField(tag))
+                    return;
+                continue;
+            }
+            int wireType = tag & TAG_TYPE_MASK;
+            if (wireType == m_wireTypes[slot]) {
+                Object val = readValue(slot, input, record);
+                if (val == null)
+                    continue;
+                if (m_repeated[slot])
+                    addRepeatedField(record, slot, val);
+                else
+                    setField(record, slot, val);
+            } else if (wireType == WIRETYPE_LENGTH_DELIMITED && m_packable[slot]) {
+                int length = input.readRawVarint32();
+                int oldLimit = input.pushLimit(length);
+                while (input.getBytesUntilLimit() > 0) {
+                    Object val = readValue(slot, input, record);
+                    if (val != null)
+                        addRepeatedField(record, slot, val);
+                }
+                input.popLimit(oldLimit);
+            } else if (!input.skipField(tag))
+                return;
+        }
+    }
+
+    /**
+     * read single (non-packed) value of the field in the slot.
+     *
+     * @param record
+     *            the record being decoded, e.g. to merge repeated occurrences
+     *            of a non-repeated message.
+     * @return converted value, or null if the value is to be ignored (e.g.
+     *         unknown enum number).
+     */
+    protected abstract Object readValue(int slot, CodedInputStream input, R record) throws IOException;
+
+    protected abstract void setField(R record, int slot, Object value) throws IOException;
+
+    protected abstract void addRepeatedField(R record, int slot, Object value) throws IOException;
+
+    /**
+     * read length-delimited embedded message with another reader. This goes
+     * thru {@link CodedInputStream#readMessage(MessageLite.Builder, ExtensionRegistryLite)}
+     * so the same checks apply: nesting deeper than the recursion limit of the
+     * input and messages ending with an end group tag are errors.
+     */
+    protected static <T> T readMessage(CodedInputStream input, ProtoWireReader<T> reader, T record)
+        throws IOException {
+        input.readMessage(new NestedMessage<T>(reader, record), ExtensionRegistryLite.getEmptyRegistry());
+        return record;
+    }
+
+    /**
+     * read length-delimited bytes straight into an array (no intermediate
+     * ByteString).
+     */
+    protected static byte[] readByteArray(CodedInputStream input) throws IOException {
+        int size = input.readRawVarint32();
+        return input.readRawBytes(size);
+    }
+
+    /**
+     * read a scalar value the way DynamicMessage would represent it (boxed
+     * primitives, String, ByteString, EnumValueDescriptor). Unknown enum
+     * numbers come back as null.
+     */
+    protected static Object readPrimitive(CodedInputStream input, FieldDescriptor fd) throws IOException {
+        switch (fd.getType()) {
+        case DOUBLE:
+            return input.readDouble();
+        case FLOAT:
+            return input.readFloat();
+        case INT64:
+            return input.readInt64();
+        case UINT64:
+            return input.readUInt64();
+        case INT32:
+            return input.readInt32();
+        case FIXED64:
+            return input.readFixed64();
+        case FIXED32:
+            return input.readFixed32();
+        case BOOL:
+            return input.readBool();
+        case STRING:
+            return input.readString();
+        case BYTES:
+            return input.readBytes();
+        case UINT32:
+            return input.readUInt32();
+        case SFIXED32:
+            return input.readSFixed32();
+        case SFIXED64:
+            return input.readSFixed64();
+        case SINT32:
+            return input.readSInt32();
+        case SINT64:
+            return input.readSInt64();
+        case ENUM:
+            return fd.getEnumType().findValueByNumber(input.readEnum());
+        case MESSAGE:
+        case GROUP:
+        default:
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * @return slot of the field number, -1 if the message has no such field.
+     */
+    protected int slotOf(int number) {
+        if (number < m_slotByNumber.length)
+            return m_slotByNumber[number];
+        if (m_sparseSlotByNumber == null)
+            return -1;
+        Integer slot = m_sparseSlotByNumber.get(number);
+        return slot == null ? -1 : slot;
+    }
+
+    private static int wireTypeOf(FieldDescriptor fd) {
+        switch (fd.getType()) {
+        case DOUBLE:
+        case FIXED64:
+        case SFIXED64:
+            return WIRETYPE_FIXED64;
+        case FLOAT:
+        case FIXED32:
+        case SFIXED32:
+            return WIRETYPE_FIXED32;
+        case STRING:
+        case BYTES:
+        case MESSAGE:
+            return WIRETYPE_LENGTH_DELIMITED;
+        case GROUP:
+            return WIRETYPE_START_GROUP;
+        default:
+            return WIRETYPE_VARINT;
+        }
+    }
+
+    /**
+     * adapts a reader and its record to what
+     * {@link CodedInputStream#readMessage(MessageLite.Builder, ExtensionRegistryLite)}
+     * merges into. Only merging is supported.
+     */
+    private static final class NestedMessage<T> extends AbstractMessageLite.Builder<NestedMessage<T>> {
+
+        private final ProtoWireReader<T> m_reader;
+        private final T                  m_record;
+
+        NestedMessage(ProtoWireReader<T> reader, T record) {
+            super();
+            m_reader = reader;
+            m_record = record;
+        }
+
+        @Override
+        public NestedMessage<T> mergeFrom(CodedInputStream input, ExtensionRegistryLite extensionRegistry)
+            throws IOException {
+            m_reader.mergeFrom(input, m_record);
+            return this;
+        }
+
+        @Override
+        public NestedMessage<T> clone() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public NestedMessage<T> clear() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public MessageLite build() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public MessageLite buildPartial() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public MessageLite getDefaultInstanceForType() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean isInitialized() {
+            return true;
+        }
+    }
+
+    private static boolean isPackableType(FieldDescriptor fd) {
+        switch (fd.getType()) {
+        case STRING:
+        case BYTES:
+        case MESSAGE:
+        case GROUP:
+            return false;
+        default:
+            return true;
+        }
+    }
+
+}
@@ -20,9 +20,13 @@ package com.inadco.ecoadapters.cascading;
 
 import cascading.tuple.Fields;
 import cascading.tuple.Tuple;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
 import com.google.protobuf.Descriptors;
 import com.google.protobuf.DynamicMessage;
+import com.google.protobuf.ExtensionRegistryLite;
 import com.google.protobuf.Message;
+import com.inadco.ecoadapters.ProtoWireReader;
 
 import java.io.IOException;
 import java.util.ArrayList;
@@ -38,10 +42,12 @@ final class CascadingTupleMap {
     private Message.Builder b;
     private List<Descriptors.FieldDescriptor> tupleMaps = new ArrayList<Descriptors.FieldDescriptor>();
     private Map<String, Integer> protoName2tMap = new HashMap<String, Integer>();
+    private ValuesReader valuesReader;
 
     public CascadingTupleMap(Descriptors.Descriptor msgDesc) {
         List<Descriptors.FieldDescriptor> fds = msgDesc.getFields();
         b = DynamicMessage.newBuilder(msgDesc);
+        valuesReader = new ValuesReader(msgDesc);
 
         int i = 0;
         for (Descriptors.FieldDescriptor fd : fds) {
@@ -108,6 +114,28 @@ final class CascadingTupleMap {
         return holder;
     }
 
+    /**
+     * same as {@link #proto2T(Message, Tuple)} but decodes the serialized
+     * message straight off the wire without building the message first. As
+     * there, fields absent in the message (including repeated fields with no
+     * values) leave their holder positions untouched.
+     */
+    public Tuple proto2T(byte[] buf, int offset, int length, Tuple holder) throws IOException {
+        Object[] vals = valuesReader.newValues();
+        valuesReader.mergeFrom(buf, offset, length, vals);
+
+        for (int i = 0; i < vals.length; i++) {
+            Descriptors.FieldDescriptor fd = tupleMaps.get(i);
+            if (fd.isRepeated()) {
+                List<?> lval = (List<?>) vals[i];
+                if (!lval.isEmpty())
+                    repeatedP2C(holder, i, fd, lval);
+            } else if (vals[i] != null)
+                simpleP2C(holder, i, fd, vals[i]);
+        }
+        return holder;
+    }
+
     static private void repeatedP2C(Tuple tupleTo, int ind, Descriptors.FieldDescriptor fd, List<?> lval) throws IOException {
         int i;
         switch (fd.getType()) {
@@ -124,7 +152,7 @@ final class CascadingTupleMap {
                 byte[][] byarr = new byte[lval.size()][];
                 i = 0;
                 for (Object o : lval) {
-                    byarr[i] = (byte[]) o;
+                    byarr[i] = toBytes(o);
                     i++;
                 }
                 tupleTo.set(ind, byarr);
@@ -216,7 +244,7 @@ final class CascadingTupleMap {
                 tupleTo.setBoolean(ind, (Boolean) val);
                 break;
             case BYTES:
-                tupleTo.set(ind, (byte[]) val);
+                tupleTo.set(ind, toBytes(val));
                 break;
             case DOUBLE:
                 tupleTo.setDouble(ind, (Double) val);
@@ -256,6 +284,13 @@ final class CascadingTupleMap {
 
     }
 
+    /**
+     * messages have bytes as {@link ByteString}, the wire reader as byte[].
+     */
+    static private byte[] toBytes(Object val) {
+        return val instanceof ByteString ? ((ByteString) val).toByteArray() : (byte[]) val;
+    }
+
     static private void repeatedC2P(Message.Builder b, Descriptors.FieldDescriptor fd, Tuple t, int ind) throws IOException {
         // expect tuple as a bag of field values
         Object src = t.getObject(ind);
@@ -268,7 +303,7 @@ final class CascadingTupleMap {
                 break;
             case BYTES:
                 for (byte[] bbs : (byte[][]) src)
-                    b.addRepeatedField(fd, bbs);
+                    b.addRepeatedField(fd, ByteString.copyFrom(bbs));
                 break;
             case DOUBLE:
                 for (double boo : (double[]) src)
@@ -336,7 +371,8 @@ final class CascadingTupleMap {
                 try { obj = t.getBoolean(ind); } catch(Exception e) { obj = new Boolean(false); }
                 break;
             case BYTES:
-                obj = (byte[]) t.getObject(ind);
+                byte[] bytes = (byte[]) t.getObject(ind);
+                obj = bytes == null ? null : ByteString.copyFrom(bytes);
                 break;
             case DOUBLE:
                 obj = t.getDouble(ind);
@@ -379,4 +415,55 @@ final class CascadingTupleMap {
         return obj;
     }
 
+    /**
+     * collects field values straight off the wire, repeated ones into lists.
+     * Bytes come out as <code>byte[]</code>, nested messages are parsed into
+     * {@link DynamicMessage}s as they still go into the tuple as is.
+     */
+    private static final class ValuesReader extends ProtoWireReader<Object[]> {
+
+        ValuesReader(Descriptors.Descriptor msgDesc) {
+            super(msgDesc, null);
+        }
+
+        Object[] newValues() {
+            Object[] vals = new Object[m_fields.length];
+            for (int i = 0; i < vals.length; i++)
+                if (m_fields[i].isRepeated())
+                    vals[i] = new ArrayList<Object>();
+            return vals;
+        }
+
+        @Override
+        protected Object readValue(int slot, CodedInputStream input, Object[] record) throws IOException {
+            Descriptors.FieldDescriptor fd = m_fields[slot];
+            switch (fd.getType()) {
+                case MESSAGE:
+                    Message.Builder mb;
+                    // non-repeated message occurring more than once is merged
+                    if (!fd.isRepeated() && record[slot] != null)
+                        mb = ((Message) record[slot]).toBuilder();
+                    else
+                        mb = DynamicMessage.newBuilder(fd.getMessageType());
+                    input.readMessage(mb, ExtensionRegistryLite.getEmptyRegistry());
+                    return mb.buildPartial();
+                case BYTES:
+                    return readByteArray(input);
+                default:
+                    return readPrimitive(input, fd);
+            }
+        }
+
+        @Override
+        protected void setField(Object[] record, int slot, Object value) {
+            record[slot] = value;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        protected void addRepeatedField(Object[] record, int slot, Object value) {
+            ((List<Object>) record[slot]).add(value);
+        }
+    }
+
 }
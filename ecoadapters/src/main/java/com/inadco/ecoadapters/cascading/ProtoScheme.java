@@ -24,9 +24,7 @@ import cascading.scheme.SourceCall;
 import cascading.tap.Tap;
 import cascading.tuple.Fields;
 import cascading.tuple.Tuple;
-import com.google.protobuf.CodedInputStream;
 import com.google.protobuf.Descriptors;
-import com.google.protobuf.DynamicMessage;
 import com.google.protobuf.Message;
 import com.inadco.ecoadapters.EcoUtil;
 import org.apache.hadoop.io.BytesWritable;
@@ -151,9 +149,7 @@ public final class ProtoScheme extends SequenceFile {
             return false;
 
         Tuple tuple = sourceCall.getIncomingEntry().getTuple();
-        DynamicMessage msg = DynamicMessage.parseFrom(m_msgDesc,
-                CodedInputStream.newInstance(bw.getBytes(), 0, bw.getLength()));
-        m_tupleMap.proto2T(msg, tuple);
+        m_tupleMap.proto2T(bw.getBytes(), 0, bw.getLength(), tuple);
         return true;
     }
 
@@ -0,0 +1,118 @@
+/**
+ *
+ *  Copyright © 2010, 2011 Inadco, Inc. All rights reserved.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ *
+ */
+package com.inadco.ecoadapters.hive;
+
+import java.util.List;
+
+/**
+ * Lazy hive row over a serialized protobuf message, in the spirit of hive's
+ * LazyStruct. Holds on to the message bytes and decodes a column only when it
+ * is asked for (see {@link LazyProtoStructObjectInspector}). The first column
+ * is decoded in a single scan skipping all other fields on the wire, which is
+ * all narrow queries need. Reading a second column walks the message once to
+ * find where each field is, columns then decode just their own occurrences.
+ * Decoded columns are cached.
+ * <P>
+ * 
+ * The bytes are referenced, not copied, so the row is valid only until the
+ * record reader moves on to the next record, same as with hive's own lazy
+ * rows.
+ * <P>
+ * 
+ * The error column reports the first decoding error of any accessed column
+ * or, if there was none, whether the message (including nested messages) is
+ * well formed at all. Unlike
+ * in eager mode, columns that decoded fine are still returned for malformed
+ * messages.
+ * 
+ * @author dmitriy
+ * 
+ */
+final class LazyProtoStruct {
+
+    private final ProtoRowReader            m_reader;
+    private final int                       m_errorCol;
+    private final ProtoRowReader.Row        m_values;
+    private final boolean[]                 m_decoded;
+    private final ProtoRowReader.FieldIndex m_index;
+
+    private byte[]                          m_buf;
+    private int                             m_offset;
+    private int                             m_length;
+    private String                          m_error;
+    // columns other than the error one read so far
+    private int                             m_colsRead;
+
+    LazyProtoStruct(ProtoRowReader reader) {
+        super();
+        m_reader = reader;
+        m_errorCol = reader.getNumCols() - 1;
+        m_values = reader.newRow();
+        m_decoded = new boolean[reader.getNumCols()];
+        m_index = new ProtoRowReader.FieldIndex(m_errorCol);
+    }
+
+    void init(byte[] buf, int offset, int length) {
+        m_buf = buf;
+        m_offset = offset;
+        m_length = length;
+        m_error = null;
+        m_colsRead = 0;
+        for (int i = 0; i < m_decoded.length; i++)
+            m_decoded[i] = false;
+    }
+
+    Object getField(int col) {
+        if (!m_decoded[col]) {
+            m_decoded[col] = true;
+            if (col == m_errorCol) {
+                if (m_error == null)
+                    try {
+                        m_reader.validate(m_buf, m_offset, m_length);
+                    } catch (Throwable thr) {
+                        m_error = thr.toString();
+                    }
+                m_values.set(col, m_error);
+            } else
+                try {
+                    int colsRead = m_colsRead++;
+                    if (colsRead == 0)
+                        m_reader.readField(m_buf, m_offset, m_length, col, m_values);
+                    else {
+                        if (colsRead == 1)
+                            m_reader.index(m_buf, m_offset, m_length, m_index);
+                        m_reader.readField(m_buf, col, m_values, m_index);
+                    }
+                } catch (Throwable thr) {
+                    m_values.set(col, null);
+                    if (m_error == null)
+                        m_error = thr.toString();
+                }
+        }
+        return m_values.get(col);
+    }
+
+    List<Object> getFieldsAsList() {
+        // error column goes last so it sees errors of all the others
+        for (int i = 0; i < m_decoded.length; i++)
+            getField(i);
+        return m_values;
+    }
+
+}
@@ -0,0 +1,57 @@
+/**
+ *
+ *  Copyright © 2010, 2011 Inadco, Inc. All rights reserved.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ *
+ */
+package com.inadco.ecoadapters.hive;
+
+import java.util.List;
+
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.StandardStructObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.StructField;
+
+/**
+ * Struct inspector for the top level {@link LazyProtoStruct} rows. Columns
+ * are decoded only when hive asks for them thru
+ * {@link #getStructFieldData(Object, StructField)}. Anything else (e.g.
+ * nested messages, which are decoded eagerly) is inspected as standard
+ * struct.
+ * 
+ * @author dmitriy
+ * 
+ */
+class LazyProtoStructObjectInspector extends StandardStructObjectInspector {
+
+    LazyProtoStructObjectInspector(List<String> structFieldNames, List<ObjectInspector> structFieldObjectInspectors) {
+        super(structFieldNames, structFieldObjectInspectors);
+    }
+
+    @Override
+    public Object getStructFieldData(Object data, StructField fieldRef) {
+        if (data instanceof LazyProtoStruct)
+            return ((LazyProtoStruct) data).getField(((MyField) fieldRef).getFieldID());
+        return super.getStructFieldData(data, fieldRef);
+    }
+
+    @Override
+    public List<Object> getStructFieldsDataAsList(Object data) {
+        if (data instanceof LazyProtoStruct)
+            return ((LazyProtoStruct) data).getFieldsAsList();
+        return super.getStructFieldsDataAsList(data);
+    }
+
+}
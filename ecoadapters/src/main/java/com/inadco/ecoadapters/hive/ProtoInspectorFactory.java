@@ -51,6 +51,21 @@ class ProtoInspectorFactory {
      */
     public static StructObjectInspector createProtobufInspector(
             Descriptors.Descriptor desc) {
+        return createProtobufInspector(desc, false);
+    }
+
+    /**
+     * Create Hive inspector for a protobuf message
+     * 
+     * @param desc
+     *            Protobuf message descriptor
+     * @param lazy
+     *            if true, the inspector expects {@link LazyProtoStruct} rows
+     *            and decodes only the columns it is asked for.
+     * @return Hive structure object inspector
+     */
+    public static StructObjectInspector createProtobufInspector(
+            Descriptors.Descriptor desc, boolean lazy) {
         Map<String, Integer> seenMap = new HashMap<String, Integer>();
         List<String> names = new ArrayList<String>();
         List<ObjectInspector> inspectors = new ArrayList<ObjectInspector>();
@@ -66,6 +81,8 @@ class ProtoInspectorFactory {
         inspectors
                 .add(PrimitiveObjectInspectorFactory.javaStringObjectInspector);
 
+        if (lazy)
+            return new LazyProtoStructObjectInspector(names, inspectors);
         return ObjectInspectorFactory.getStandardStructObjectInspector(names,
                 inspectors);
     }
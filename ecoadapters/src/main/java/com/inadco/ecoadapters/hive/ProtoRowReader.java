@@ -0,0 +1,370 @@
+/**
+ *
+ *  Copyright © 2010, 2011 Inadco, Inc. All rights reserved.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ *
+ */
+package com.inadco.ecoadapters.hive;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.Descriptors.Descriptor;
+import com.google.protobuf.Descriptors.EnumValueDescriptor;
+import com.google.protobuf.Descriptors.FieldDescriptor;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.inadco.ecoadapters.ProtoWireReader;
+
+/**
+ * Decodes serialized protobuf messages straight into hive rows as expected by
+ * the inspectors of {@link ProtoInspectorFactory} (lists of column values with
+ * trailing error column, repeated fields as lists, bytes as hex strings, enums
+ * as their names).
+ * <P>
+ * 
+ * Rows can be reused: a row decoded again is overwritten in place, including
+ * its nested message rows and lists of repeated values, so in steady state
+ * only the leaf values are allocated per record.
+ * 
+ * @author dmitriy
+ * 
+ */
+final class ProtoRowReader extends ProtoWireReader<ProtoRowReader.Row> {
+
+    // default recursion limit of CodedInputStream, which decoding goes by
+    private static final int       MAX_NESTING_DEPTH = 64;
+
+    private final int              m_numCols;
+    private final ProtoRowReader[] m_nested;
+
+    // lazily created single field readers for lazy rows
+    private ProtoRowReader[]       m_fieldReaders;
+
+    static ProtoRowReader create(Descriptor msgDesc) {
+        return create(msgDesc, null);
+    }
+
+    /**
+     * @param wanted
+     *            top level fields to decode (by field index), null means all.
+     *            Fields not wanted are left null in the rows. Nested messages
+     *            are always decoded in their entirety.
+     */
+    static ProtoRowReader create(Descriptor msgDesc, boolean[] wanted) {
+        return new ProtoRowReader(msgDesc, wanted, new HashMap<Descriptor, ProtoRowReader>());
+    }
+
+    private ProtoRowReader(Descriptor msgDesc, boolean[] wanted, Map<Descriptor, ProtoRowReader> compiled) {
+        super(msgDesc, wanted);
+        // only complete readers may be reused for nested messages
+        if (wanted == null)
+            compiled.put(msgDesc, this);
+
+        // one extra for the error column
+        m_numCols = m_fields.length + 1;
+        m_nested = new ProtoRowReader[m_fields.length];
+        for (int i = 0; i < m_fields.length; i++) {
+            FieldDescriptor fd = m_fields[i];
+            if (fd.getType() != FieldDescriptor.Type.MESSAGE)
+                continue;
+            ProtoRowReader nested = compiled.get(fd.getMessageType());
+            m_nested[i] = nested != null ? nested : new ProtoRowReader(fd.getMessageType(), null, compiled);
+        }
+    }
+
+    Row newRow() {
+        Row row = new Row(m_numCols);
+        for (int i = 0; i < m_fields.length; i++)
+            row.add(m_fields[i].isRepeated() && isWanted(i) ? new ArrayList<Object>() : null);
+        row.add(null);
+        return row;
+    }
+
+    Row read(byte[] buf, int offset, int length) throws IOException {
+        Row row = newRow();
+        mergeFrom(buf, offset, length, row);
+        return row;
+    }
+
+    /**
+     * decode into a row previously obtained from {@link #newRow()}, reusing
+     * it.
+     */
+    Row read(byte[] buf, int offset, int length, Row row) throws IOException {
+        reset(row);
+        mergeFrom(buf, offset, length, row);
+        return row;
+    }
+
+    int getNumCols() {
+        return m_numCols;
+    }
+
+    /**
+     * one pass over the message on the wire, recording where the occurrences
+     * of each top level field are without decoding anything, so that
+     * {@link #readField(byte[], int, Row, FieldIndex)} doesn't have to scan the
+     * whole message again for every column.
+     */
+    void index(byte[] buf, int offset, int length, FieldIndex index) throws IOException {
+        index.clear();
+        CodedInputStream input = CodedInputStream.newInstance(buf, offset, length);
+        try {
+            while (true) {
+                int start = input.getTotalBytesRead();
+                int tag = input.readTag();
+                if (tag == 0)
+                    return;
+                boolean more = input.skipField(tag);
+                int slot = slotOf(tag >>> TAG_TYPE_BITS);
+                if (slot >= 0)
+                    index.add(slot, offset + start, input.getTotalBytesRead() - start);
+                if (!more)
+                    return;
+            }
+        } catch (IOException exc) {
+            index.m_error = exc;
+            throw exc;
+        }
+    }
+
+    /**
+     * decode only one top level field of the message into the row, skipping
+     * everything else on the wire.
+     */
+    void readField(byte[] buf, int offset, int length, int slot, Row row) throws IOException {
+        prepareField(slot, row).mergeFrom(buf, offset, length, row);
+    }
+
+    /**
+     * decode only one top level field of the message into the row, reading
+     * just its occurrences found by {@link #index(byte[], int, int, FieldIndex)}.
+     */
+    void readField(byte[] buf, int slot, Row row, FieldIndex index) throws IOException {
+        if (index.m_error != null)
+            throw index.m_error;
+        ProtoRowReader fieldReader = prepareField(slot, row);
+        int[] offsets = index.m_offsets[slot], lengths = index.m_lengths[slot];
+        for (int i = 0; i < index.m_counts[slot]; i++)
+            fieldReader.mergeFrom(buf, offsets[i], lengths[i], row);
+    }
+
+    /**
+     * @return reader of the field only, after clearing the field in the row
+     */
+    private ProtoRowReader prepareField(int slot, Row row) {
+        if (m_fieldReaders == null)
+            m_fieldReaders = new ProtoRowReader[m_fields.length];
+        ProtoRowReader fieldReader = m_fieldReaders[slot];
+        if (fieldReader == null) {
+            boolean[] wanted = new boolean[m_fields.length];
+            wanted[slot] = true;
+            m_fieldReaders[slot] = fieldReader = create(m_msgDesc, wanted);
+        }
+        resetSlot(row, slot);
+        if (m_fields[slot].isRepeated() && row.get(slot) == null)
+            row.set(slot, new ArrayList<Object>());
+        return fieldReader;
+    }
+
+    /**
+     * walk the whole message on the wire, including nested messages, without
+     * decoding anything, to find out if it is well formed. Nesting is limited
+     * the same way as in decoding.
+     */
+    void validate(byte[] buf, int offset, int length) throws IOException {
+        CodedInputStream input = CodedInputStream.newInstance(buf, offset, length);
+        validate(input, 0);
+        input.checkLastTagWas(0);
+    }
+
+    private void validate(CodedInputStream input, int depth) throws IOException {
+        while (true) {
+            int tag = input.readTag();
+            if (tag == 0)
+                return;
+            int slot = slotOf(tag >>> TAG_TYPE_BITS);
+            if (slot >= 0 && m_nested[slot] != null && (tag & TAG_TYPE_MASK) == WIRETYPE_LENGTH_DELIMITED) {
+                if (depth >= MAX_NESTING_DEPTH)
+                    throw new InvalidProtocolBufferException(String.format("Messages nested deeper than %d levels.",
+                                                                           MAX_NESTING_DEPTH));
+                int length = input.readRawVarint32();
+                int oldLimit = input.pushLimit(length);
+                m_nested[slot].validate(input, depth + 1);
+                input.checkLastTagWas(0);
+                input.popLimit(oldLimit);
+            } else if (!input.skipField(tag))
+                return;
+        }
+    }
+
+    @Override
+    protected Object readValue(int slot, CodedInputStream input, Row record) throws IOException {
+        FieldDescriptor fd = m_fields[slot];
+        switch (fd.getType()) {
+        case MESSAGE:
+            ProtoRowReader nested = m_nested[slot];
+            Row nestedRow = fd.isRepeated() ? null : (Row) record.get(slot);
+            if (nestedRow == null) {
+                nestedRow = record.takeSpare(slot);
+                if (nestedRow == null)
+                    nestedRow = nested.newRow();
+                else
+                    nested.reset(nestedRow);
+            }
+            return readMessage(input, nested, nestedRow);
+        case BYTES:
+            // we convert to string using %X formatting
+            return ProtoSerDe.getHexString(readByteArray(input));
+        case ENUM:
+            EnumValueDescriptor enDesc = (EnumValueDescriptor) readPrimitive(input, fd);
+            return enDesc == null ? null : enDesc.getName();
+        default:
+            return readPrimitive(input, fd);
+        }
+    }
+
+    @Override
+    protected void setField(Row record, int slot, Object value) {
+        record.set(slot, value);
+    }
+
+    @Override
+    protected void addRepeatedField(Row record, int slot, Object value) {
+        List<Object> values = cast(record.get(slot));
+        values.add(value);
+    }
+
+    private void reset(Row row) {
+        for (int i = 0; i < m_fields.length; i++)
+            resetSlot(row, i);
+        row.set(m_fields.length, null);
+    }
+
+    private void resetSlot(Row row, int slot) {
+        Object val = row.get(slot);
+        if (val == null)
+            return;
+        if (m_fields[slot].isRepeated()) {
+            List<Object> values = cast(val);
+            if (m_nested[slot] != null)
+                for (Object nestedRow : values)
+                    row.putSpare(slot, (Row) nestedRow);
+            values.clear();
+        } else {
+            if (m_nested[slot] != null)
+                row.putSpare(slot, (Row) val);
+            row.set(slot, null);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<Object> cast(Object list) {
+        return (List<Object>) list;
+    }
+
+    /**
+     * hive row. Besides the column values, keeps nested message rows of the
+     * previous record around so they can be reused for the next one.
+     */
+    static final class Row extends ArrayList<Object> {
+
+        private static final long serialVersionUID = 1L;
+
+        // at most this many spare rows are kept per column, so one record
+        // with a long repeated message column doesn't pin them all for good
+        private static final int  MAX_SPARES       = 64;
+
+        // per column: spare rows for message columns
+        private List<List<Row>>   m_spares;
+
+        Row(int numCols) {
+            super(numCols);
+        }
+
+        void putSpare(int col, Row row) {
+            if (m_spares == null) {
+                m_spares = new ArrayList<List<Row>>(size());
+                for (int i = size(); i > 0; i--)
+                    m_spares.add(null);
+            }
+            List<Row> spares = m_spares.get(col);
+            if (spares == null)
+                m_spares.set(col, spares = new ArrayList<Row>());
+            if (spares.size() < MAX_SPARES)
+                spares.add(row);
+        }
+
+        Row takeSpare(int col) {
+            if (m_spares == null)
+                return null;
+            List<Row> spares = m_spares.get(col);
+            if (spares == null || spares.isEmpty())
+                return null;
+            return spares.remove(spares.size() - 1);
+        }
+    }
+
+    /**
+     * where the occurrences of each top level field are in a serialized
+     * message (see {@link ProtoRowReader#index(byte[], int, int, FieldIndex)}).
+     * Reused from record to record. Adjacent occurrences of a field (e.g.
+     * non-packed repeated values) are coalesced.
+     */
+    static final class FieldIndex {
+
+        private final int[][] m_offsets;
+        private final int[][] m_lengths;
+        private final int[]   m_counts;
+        private IOException   m_error;
+
+        FieldIndex(int numFields) {
+            super();
+            m_offsets = new int[numFields][];
+            m_lengths = new int[numFields][];
+            m_counts = new int[numFields];
+        }
+
+        void clear() {
+            for (int i = 0; i < m_counts.length; i++)
+                m_counts[i] = 0;
+            m_error = null;
+        }
+
+        private void add(int slot, int offset, int length) {
+            int n = m_counts[slot];
+            if (n > 0 && m_offsets[slot][n - 1] + m_lengths[slot][n - 1] == offset) {
+                m_lengths[slot][n - 1] += length;
+                return;
+            }
+            if (m_offsets[slot] == null) {
+                m_offsets[slot] = new int[2];
+                m_lengths[slot] = new int[2];
+            } else if (n == m_offsets[slot].length) {
+                m_offsets[slot] = Arrays.copyOf(m_offsets[slot], n << 1);
+                m_lengths[slot] = Arrays.copyOf(m_lengths[slot], n << 1);
+            }
+            m_offsets[slot][n] = offset;
+            m_lengths[slot][n] = length;
+            m_counts[slot] = n + 1;
+        }
+    }
+
+}
@@ -19,15 +19,15 @@
 package com.inadco.ecoadapters.hive;
 
 
-import java.math.BigInteger;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hive.serde2.ColumnProjectionUtils;
 import org.apache.hadoop.hive.serde2.SerDe;
 import org.apache.hadoop.hive.serde2.SerDeException;
 import org.apache.hadoop.hive.serde2.SerDeStats;
@@ -41,7 +41,6 @@ import org.apache.log4j.Logger;
 
 import com.google.protobuf.ByteString;
 import com.google.protobuf.Descriptors;
-import com.google.protobuf.Descriptors.EnumValueDescriptor;
 import com.google.protobuf.Descriptors.FieldDescriptor;
 import com.google.protobuf.DynamicMessage;
 import com.google.protobuf.Message;
@@ -112,6 +111,16 @@ import com.inadco.ecoadapters.EcoUtil;
  * </pre>
  * <P>
  * 
+ * Only the columns hive prunes the query down to (hive.io.file.readcolumn.ids)
+ * are decoded, the rest are skipped on the wire and come out as nulls.
+ * <P>
+ * 
+ * Setting serde property "lazy"="true" turns on lazy deserialization: rows
+ * then keep the serialized message and decode only the columns the query
+ * actually touches (see {@link LazyProtoStruct}), which makes narrow queries
+ * over wide messages a lot cheaper.
+ * <P>
+ * 
  * serialization is not supported.
  * 
  * @author dmitriy
@@ -124,6 +133,12 @@ public class ProtoSerDe implements SerDe {
     private StructObjectInspector m_protoMsgInspector;
     private Descriptors.Descriptor m_msgDesc;
     private Message.Builder m_msgBuilder;
+    private ProtoRowReader m_rowReader;
+    private boolean m_lazy;
+    // hive allows row objects to be reused between deserialize() calls
+    private ProtoRowReader.Row m_row;
+    private LazyProtoStruct m_lazyRow;
+    private List<Object> m_errorRow;
     private Map<String,Map<Integer,FieldDescriptor>> m_desc = new HashMap<String,Map<Integer,FieldDescriptor>>();
     
 
@@ -138,6 +153,7 @@ public class ProtoSerDe implements SerDe {
         try {
             String msgClsName = props.getProperty("messageClass");
             String fileDescSetUri = props.getProperty("fileDescSetUri");
+            m_lazy = Boolean.parseBoolean(props.getProperty("lazy"));
             if (msgClsName != null)
                 m_msgDesc = EcoUtil.inferDescriptorFromClassName(msgClsName);
             else if (fileDescSetUri != null) {
@@ -153,8 +169,16 @@ public class ProtoSerDe implements SerDe {
                         "either FileDescriptorSet's file uri or message class name must be specified.");
 
             m_msgBuilder = DynamicMessage.newBuilder(m_msgDesc);
+            m_rowReader = ProtoRowReader.create(m_msgDesc,
+                    getReadColumns(configuration));
             m_protoMsgInspector = ProtoInspectorFactory
-                    .createProtobufInspector(m_msgDesc);
+                    .createProtobufInspector(m_msgDesc, m_lazy);
+            if (m_lazy)
+                m_lazyRow = new LazyProtoStruct(m_rowReader);
+            else
+                m_row = m_rowReader.newRow();
+            m_errorRow = new ArrayList<Object>(Collections.nCopies(
+                    m_rowReader.getNumCols(), null));
 
             if (LOG.isDebugEnabled())
                 LOG.debug(String.format("Loaded SerDe for message '%s'.",
@@ -167,6 +191,31 @@ public class ProtoSerDe implements SerDe {
         }
     }
 
+    /**
+     * columns hive pruned the query down to, so we don't decode the rest.
+     * 
+     * @return wanted fields by field index, or null if all are needed.
+     */
+    private boolean[] getReadColumns(Configuration configuration) {
+        if (configuration == null)
+            return null;
+        List<Integer> readColIds = ColumnProjectionUtils
+                .getReadColumnIDs(configuration);
+        // same as hive's own serdes: nothing set means everything
+        if (readColIds == null || readColIds.isEmpty())
+            return null;
+        int numFields = m_msgDesc.getFields().size();
+        boolean[] wanted = new boolean[numFields];
+        for (Integer colId : readColIds)
+            // error column is always there and not a message field
+            if (colId < numFields)
+                wanted[colId] = true;
+        if (LOG.isDebugEnabled())
+            LOG.debug(String.format("Reading only columns %s of '%s'.",
+                    readColIds, m_msgDesc.getName()));
+        return wanted;
+    }
+
     @Override
     public Class<? extends Writable> getSerializedClass() {
         return BytesWritable.class;
@@ -183,11 +232,14 @@ public class ProtoSerDe implements SerDe {
         try {
             BytesWritable value = (BytesWritable) writableBlob;
 
-            byte[] msgBytes = Arrays
-                    .copyOf(value.getBytes(), value.getLength());
-            Message msg = m_msgBuilder.clone().mergeFrom(msgBytes)
-                    .buildPartial();
-            return protoMsg2Hive(msg, m_msgDesc);
+            if (m_lazy) {
+                m_lazyRow.init(value.getBytes(), 0, value.getLength());
+                return m_lazyRow;
+            }
+
+            // decode straight off the writable's buffer, no copy
+            return m_rowReader.read(value.getBytes(), 0, value.getLength(),
+                    m_row);
 
         } catch (Throwable thr) {
             return toError(thr);
@@ -244,74 +296,6 @@ public class ProtoSerDe implements SerDe {
     	return new BytesWritable(b.build().toByteArray());
     }
 
-    private static List<Object> protoMsg2Hive(Message msg,
-            Descriptors.Descriptor desc) {
-        List<Object> result = new ArrayList<Object>();
-        for (FieldDescriptor fd : desc.getFields()) {
-            if (fd.isRepeated())
-                result.add(repeatedProto2Hive(msg, fd));
-            else {
-                if (msg.hasField(fd))
-                    result.add(nonRepeatedProto2Hive(msg, fd));
-                else
-                    result.add(null);
-            }
-        }
-        result.add(null);
-        return result;
-    }
-
-    private static Object repeatedProto2Hive(Message msg, FieldDescriptor fd) {
-        List<Object> result = new ArrayList<Object>();
-        int cnt = msg.getRepeatedFieldCount(fd);
-        for (int i = 0; i < cnt; i++)
-            result.add(proto2hive(msg.getRepeatedField(fd, i), fd));
-        return result;
-    }
-
-    private static Object nonRepeatedProto2Hive(Message msg, FieldDescriptor fd) {
-        return proto2hive(msg.getField(fd), fd);
-    }
-
-    private static Object proto2hive(Object src, FieldDescriptor fd) {
-
-        switch (fd.getType()) {
-        case MESSAGE:
-            Message msgField = (Message) src;
-            return protoMsg2Hive(msgField, fd.getMessageType());
-        case BYTES:
-            byte[] val = ((ByteString) src).toByteArray();
-            // we convert to string using %X formatting
-            return getHexString(val);
-        case BOOL:
-        case DOUBLE:
-
-        case SINT32:
-        case SFIXED32:
-        case UINT32:
-        case INT32:
-        case FIXED32:
-        case SINT64:
-        case SFIXED64:
-        case INT64:
-        case UINT64:
-        case FIXED64:
-        case FLOAT:
-        case STRING:
-            return src;
-
-        case ENUM: // convert to strings.
-            EnumValueDescriptor enDesc = (EnumValueDescriptor) src;
-            return enDesc.getName();
-
-        case GROUP:
-
-        default:
-            throw new UnsupportedOperationException();
-
-        }
-    }
-    
     @SuppressWarnings("unchecked")
 	private Object hive2proto(Object src, FieldDescriptor fd, ObjectInspector soi) throws SerDeException {
 
@@ -322,7 +306,8 @@ public class ProtoSerDe implements SerDe {
                 if(src instanceof Boolean) { obj = src; } else { obj = Boolean.parseBoolean(""+src); }
                 break;
             case BYTES:
-                obj = getByteArray(src+"");
+                // rows carry bytes as hex strings, see getHexString()
+                obj = ByteString.copyFrom(getByteArray(src+""));
                 break;
             case DOUBLE:
             	if(src instanceof Double) { obj = src; } else { obj = Double.parseDouble(""+src); }
@@ -364,19 +349,13 @@ public class ProtoSerDe implements SerDe {
 
     private List<Object> toError(Throwable thr) {
 
-        List<Object> result = new ArrayList<Object>();
-
-        for (int i = 0; i < m_protoMsgInspector.getAllStructFieldRefs().size() - 1; i++)
-            result.add(null);
-
-        String error = thr.toString();
-        result.add(error);
-
-        return result;
+        // all columns but the error one stay null, so reuse the same row
+        m_errorRow.set(m_errorRow.size() - 1, thr.toString());
+        return m_errorRow;
 
     }
 
-    private static String getHexString(byte[] b) {
+    static String getHexString(byte[] b) {
         StringBuilder result = new StringBuilder();
         for (int i = 0; i < b.length; i++) {
            result.append(Integer.toString((b[i] & 0xff) + 0x100, 16).substring(1));
@@ -384,8 +363,16 @@ public class ProtoSerDe implements SerDe {
         return result.toString().toUpperCase();
     }
     
+    // inverse of getHexString(), keeps leading zero bytes. An odd number of
+    // digits is read with a leading zero, as BigInteger used to.
     private static byte[] getByteArray(String s) {
-    	return new BigInteger(s, 16).toByteArray();
+        if ((s.length() & 1) != 0)
+            s = "0" + s;
+        byte[] b = new byte[s.length() / 2];
+        for (int i = 0; i < b.length; i++) {
+           b[i] = (byte) Integer.parseInt(s.substring(2 * i, 2 * i + 2), 16);
+        }
+        return b;
     }
 
 	@Override
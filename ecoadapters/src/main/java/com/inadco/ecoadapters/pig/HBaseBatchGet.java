@@ -0,0 +1,160 @@
+/**
+ *
+ *  Copyright © 2010, 2011 Inadco, Inc. All rights reserved.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ *
+ */
+package com.inadco.ecoadapters.pig;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.pig.EvalFunc;
+import org.apache.pig.PigException;
+import org.apache.pig.data.BagFactory;
+import org.apache.pig.data.DataBag;
+import org.apache.pig.data.DataByteArray;
+import org.apache.pig.data.DataType;
+import org.apache.pig.data.Tuple;
+import org.apache.pig.impl.logicalLayer.FrontendException;
+import org.apache.pig.impl.logicalLayer.schema.Schema;
+import org.apache.pig.impl.logicalLayer.schema.Schema.FieldSchema;
+
+/**
+ * Batched version of {@link HBaseGet}. Takes a bag of keys and looks them all
+ * up with multi-gets, one hbase call per batch of keys rather than per key.
+ * <P>
+ * 
+ * use
+ * 
+ * <pre>
+ * define getMyTab com.inadco.ecoadapters.pig.HBaseBatchGet('mytab','mycolspec'[,'batch-size']);
+ * 
+ * A = load ... as (key: bytearray, ...);
+ * B = group A by some_bucketing_expr;
+ * C = foreach B generate flatten(getMyTab(A.key));
+ * </pre>
+ * 
+ * Colspec has the same format as in {@link HBaseProtobufLoader}. Batch size
+ * defaults to {@link #DEFAULT_BATCH_SIZE}.
+ * <P>
+ * 
+ * Returns a bag with one tuple per key in the input bag, in the same order:
+ * the key ({@link HBaseProtobufStorage#HKEY_ALIAS}) followed by the column
+ * attributes same as {@link HBaseGet} produces. Columns of the rows not found
+ * are nulls.
+ * <P>
+ * 
+ * Keys already looked up may be served from the same optional cache as
+ * {@link HBaseGet} uses; only the rest is fetched from hbase.
+ * <P>
+ * 
+ * Batches of one bag may be fetched asynchronously, several at a time, while
+ * the results of earlier ones are converted (see {@link HBaseLookup}), e.g.
+ * 
+ * <pre>
+ * set inadco.HBaseGet.async.threads 4;
+ * set inadco.HBaseGet.async.maxInFlight 8;
+ * </pre>
+ * 
+ * Each call still returns only once all batches of its bag are done, so
+ * this helps with large bags only; it does not overlap lookups of different
+ * bags. Output order is still that of the input keys.
+ * <P>
+ * 
+ * @author dmitriy
+ * 
+ */
+public class HBaseBatchGet extends EvalFunc<DataBag> {
+
+    public static final int     DEFAULT_BATCH_SIZE = 100;
+
+    private final HBaseLookup   m_lookup;
+    private final int           m_batchSize;
+
+    public HBaseBatchGet(String table, String colspec) throws PigException {
+        this(table, colspec, Integer.toString(DEFAULT_BATCH_SIZE));
+    }
+
+    public HBaseBatchGet(String table, String colspec, String batchSize) throws PigException {
+        super();
+        m_lookup = new HBaseLookup(table, colspec);
+        m_batchSize = Integer.parseInt(batchSize.trim());
+        if (m_batchSize <= 0)
+            throw new PigException("batch size must be positive");
+    }
+
+    @Override
+    public Schema outputSchema(Schema input) {
+        try {
+
+            // validate input
+            List<FieldSchema> fields = input.getFields();
+            if (fields.size() != 1 || fields.get(0).type != DataType.BAG)
+                throw new IllegalArgumentException("HBaseBatchGet() call requires single bag of keys argument");
+
+            // generate output schema.
+            Schema ts = new Schema();
+            ts.add(new FieldSchema(HBaseProtobufStorage.HKEY_ALIAS, DataType.BYTEARRAY));
+            m_lookup.addColumnsSchema(ts);
+            return new Schema(new FieldSchema(null, ts, DataType.BAG));
+        } catch (FrontendException exc) {
+            throw new IllegalArgumentException(exc);
+        }
+    }
+
+    @Override
+    public DataBag exec(Tuple input) throws IOException {
+        if (input == null)
+            return null;
+        DataBag keyBag = (DataBag) input.get(0);
+        if (keyBag == null)
+            return null;
+
+        List<byte[]> keys = new ArrayList<byte[]>((int) keyBag.size());
+        for (Tuple keyTuple : keyBag) {
+            Object key = keyTuple == null || keyTuple.size() == 0 ? null : keyTuple.get(0);
+            // can't look up null keys, they just get null columns
+            keys.add(key == null ? null : DataType.toBytes(key));
+        }
+
+        Tuple[] columns = m_lookup.lookup(keys, m_batchSize);
+
+        DataBag resultBag = BagFactory.getInstance().newDefaultBag();
+        int numAttrs = m_lookup.getNumAttrs();
+        for (int i = 0; i < columns.length; i++) {
+            byte[] key = keys.get(i);
+            Tuple tuple = m_lookup.getTupleFactory().newTuple(numAttrs + 1);
+            if (key != null)
+                tuple.set(0, new DataByteArray(key));
+            if (columns[i] != null)
+                for (int j = 0; j < numAttrs; j++)
+                    tuple.set(j + 1, columns[i].get(j));
+            resultBag.add(tuple);
+        }
+        return resultBag;
+    }
+
+    @Override
+    public void finish() {
+        try {
+            m_lookup.close();
+        } catch (IOException exc) {
+            throw new IllegalStateException(exc);
+        }
+    }
+
+}
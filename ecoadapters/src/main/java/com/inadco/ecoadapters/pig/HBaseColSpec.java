@@ -18,8 +18,15 @@
  */
 package com.inadco.ecoadapters.pig;
 
+import java.io.IOException;
+
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.Result;
 import org.apache.hadoop.hbase.util.Bytes;
 import org.apache.pig.PigException;
+import org.apache.pig.data.DataByteArray;
+import org.apache.pig.data.Tuple;
+import org.apache.pig.data.TupleFactory;
 import org.apache.pig.impl.logicalLayer.schema.Schema;
 
 import com.google.protobuf.Descriptors.Descriptor;
@@ -34,6 +41,8 @@ class HBaseColSpec {
     Descriptor[] m_msgDesc;
     Message.Builder[] m_msgBuilder;
     Schema[] m_pigSchema;
+    PigUtil.Proto2TupleMap[] m_tupleMaps;
+    ProtoTupleReader[] m_tupleReaders;
 
     public HBaseColSpec(String colSpecStr, boolean prepPigSchemas)
             throws PigException {
@@ -45,8 +54,10 @@ class HBaseColSpec {
             m_cols = new byte[colSpecs.length][];
             m_msgDesc = new Descriptor[colSpecs.length];
             m_msgBuilder = new Message.Builder[colSpecs.length];
-            if (prepPigSchemas)
+            if (prepPigSchemas) {
                 m_pigSchema = new Schema[colSpecs.length];
+                m_tupleMaps = new PigUtil.Proto2TupleMap[colSpecs.length];
+            }
             for (int i = 0; i < colSpecs.length; i++) {
                 String colSpec = colSpecs[i];
                 int famPos = colSpec.indexOf(':');
@@ -78,9 +89,12 @@ class HBaseColSpec {
 
                     m_msgBuilder[i] = DynamicMessage.newBuilder(m_msgDesc[i]);
 
-                    if (prepPigSchemas)
+                    if (prepPigSchemas) {
                         m_pigSchema[i] = PigUtil
                                 .generatePigSchemaFromProto(m_msgDesc[i]);
+                        m_tupleMaps[i] = PigUtil
+                                .generateProto2TupleMap(m_msgDesc[i]);
+                    }
 
                     // if (LOG.isDebugEnabled())
                     // LOG.debug(String.format("Loaded LoadFunc for message class:%s",
@@ -97,4 +111,86 @@ class HBaseColSpec {
         }
     }
 
+    /**
+     * append column value and timestamp attributes for every column in the
+     * spec to the tuple, nulls for columns missing in the result.
+     * <P>
+     * 
+     * Works off the result's raw key values (which are sorted by family,
+     * qualifier and then newest timestamp first), so no family/qualifier/
+     * version maps are built per row. Messages are decoded straight from the
+     * cell buffer, and must have all of their required fields.
+     */
+    void appendColumns(Result result, Tuple tuple, TupleFactory tf) throws IOException {
+        appendColumns(result, tuple, tf, null);
+    }
+
+    /**
+     * @param wanted
+     *            columns to decode, null means all. The others come out as
+     *            nulls, same as missing ones.
+     */
+    void appendColumns(Result result, Tuple tuple, TupleFactory tf, boolean[] wanted) throws IOException {
+        if (m_tupleReaders == null) {
+            m_tupleReaders = new ProtoTupleReader[m_cols.length];
+            for (int i = 0; i < m_cols.length; i++)
+                if (m_tupleMaps[i] != null)
+                    m_tupleReaders[i] = ProtoTupleReader.create(m_tupleMaps[i], tf);
+        }
+
+        KeyValue[] kvs = result.raw();
+        for (int i = 0; i < m_cols.length; ++i) {
+            int pos = wanted == null || wanted[i] ? findLatest(kvs, i) : -1;
+            if (pos < 0) {
+                tuple.append(null);
+                tuple.append(null);
+                continue;
+            }
+
+            KeyValue kv = kvs[pos];
+            int valOffset = kv.getValueOffset(), valLength = kv.getValueLength();
+            if (m_tupleReaders[i] == null)
+                tuple.append(new DataByteArray(kv.getBuffer(), valOffset, valOffset + valLength));
+            else {
+                Tuple msgTuple = m_tupleReaders[i].read(kv.getBuffer(), valOffset, valLength);
+                // same as the message builders used to, don't load cells
+                // missing required fields
+                m_tupleReaders[i].checkRequired(msgTuple);
+                tuple.append(msgTuple);
+            }
+
+            tuple.append(kv.getTimestamp()); // the version
+        }
+    }
+
+    /**
+     * binary search for the latest cell of the column in the sorted key
+     * values of a single row.
+     * 
+     * @return position of the cell, or -1 if not there.
+     */
+    int findLatest(KeyValue[] kvs, int col) {
+        if (kvs == null)
+            return -1;
+        byte[] fam = m_fams[col], qual = m_cols[col];
+        // lower bound of the family/qualifier, i.e. its newest version
+        int lo = 0, hi = kvs.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (compareColumn(kvs[mid], fam, qual) < 0)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo < kvs.length && compareColumn(kvs[lo], fam, qual) == 0 ? lo : -1;
+    }
+
+    private static int compareColumn(KeyValue kv, byte[] fam, byte[] qual) {
+        byte[] buf = kv.getBuffer();
+        int c = Bytes.compareTo(buf, kv.getFamilyOffset(), kv.getFamilyLength(), fam, 0, fam.length);
+        if (c != 0)
+            return c;
+        return Bytes.compareTo(buf, kv.getQualifierOffset(), kv.getQualifierLength(), qual, 0, qual.length);
+    }
+
 }
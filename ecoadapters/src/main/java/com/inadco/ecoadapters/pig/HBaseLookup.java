@@ -0,0 +1,402 @@
+/**
+ *
+ *  Copyright © 2010, 2011 Inadco, Inc. All rights reserved.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ *
+ */
+package com.inadco.ecoadapters.pig;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.HBaseConfiguration;
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.hbase.client.HTableInterface;
+import org.apache.hadoop.hbase.client.HTablePool;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.mapreduce.Counter;
+import org.apache.pig.PigException;
+import org.apache.pig.data.DataType;
+import org.apache.pig.data.Tuple;
+import org.apache.pig.data.TupleFactory;
+import org.apache.pig.impl.logicalLayer.FrontendException;
+import org.apache.pig.impl.logicalLayer.schema.Schema;
+import org.apache.pig.impl.logicalLayer.schema.Schema.FieldSchema;
+import org.apache.pig.impl.util.UDFContext;
+import org.apache.pig.tools.pigstats.PigStatusReporter;
+
+/**
+ * hbase row lookups by key shared by {@link HBaseGet} and
+ * {@link HBaseBatchGet}: the table, column spec, gets and conversion of the
+ * results to pig attributes.
+ * <P>
+ * 
+ * Optionally, converted rows are kept in a per-task LRU cache bounded by
+ * number of entries ({@link #CACHE_MAX_ENTRIES_PROP}) and estimated memory
+ * size ({@link #CACHE_MAX_BYTES_PROP}), so hot keys do not cost an hbase call
+ * and message parsing every time. Rows not found are cached too. The cache is
+ * off unless max entries is set in the job configuration (e.g. with pig's
+ * <code>set</code>). Hits and misses are reported as pig counters in
+ * {@link #COUNTER_GROUP} group.
+ * <P>
+ * 
+ * The batches of one multi-get may also run asynchronously
+ * ({@link #ASYNC_THREADS_PROP}): they are issued on a small pool of worker
+ * threads, at most {@link #ASYNC_MAX_IN_FLIGHT_PROP} of them at a time, while
+ * the results of earlier batches are being converted. The multi-get still
+ * returns only once all of its batches are done, in the order of the keys;
+ * nothing is overlapped across calls. Single key lookups are not affected.
+ * 
+ * @author dmitriy
+ * 
+ */
+class HBaseLookup {
+
+    static final String        CACHE_MAX_ENTRIES_PROP    = "inadco.HBaseGet.cache.maxEntries";
+    static final String        CACHE_MAX_BYTES_PROP      = "inadco.HBaseGet.cache.maxBytes";
+    static final long          DEFAULT_CACHE_MAX_BYTES   = 64L << 20;
+
+    static final String        ASYNC_THREADS_PROP        = "inadco.HBaseGet.async.threads";
+    static final String        ASYNC_MAX_IN_FLIGHT_PROP  = "inadco.HBaseGet.async.maxInFlight";
+
+    static final String        COUNTER_GROUP             = "HBaseGet";
+    static final String        COUNTER_CACHE_HITS        = "cache hits";
+    static final String        COUNTER_CACHE_MISSES      = "cache misses";
+
+    private final byte[]       m_table;
+    private final HBaseColSpec m_colSpec;
+    private HTable             m_htable;
+    private TupleFactory       m_tupleFactory;
+    private ResultCache        m_cache;
+    private HTablePool         m_htablePool;
+    private ExecutorService    m_executor;
+    private int                m_maxInFlight;
+
+    HBaseLookup(String table, String colspec) throws PigException {
+        super();
+        m_table = Bytes.toBytes(table);
+        m_colSpec = new HBaseColSpec(colspec, true);
+    }
+
+    /**
+     * adds column and timestamp attributes for every column in the spec to the
+     * schema.
+     */
+    void addColumnsSchema(Schema ps) throws FrontendException {
+        for (int i = 0; i < m_colSpec.m_pigSchema.length; i++) {
+            String colName = Bytes.toString(m_colSpec.m_fams[i]) + "::" + Bytes.toString(m_colSpec.m_cols[i]);
+            if (m_colSpec.m_pigSchema[i] != null)
+                ps.add(new FieldSchema(colName, m_colSpec.m_pigSchema[i], DataType.TUPLE));
+            else
+                ps.add(new FieldSchema(colName, DataType.BYTEARRAY));
+            String timestampName = colName + "::timestamp";
+            ps.add(new FieldSchema(timestampName, DataType.LONG));
+        }
+    }
+
+    /**
+     * @return number of attributes {@link #addColumnsSchema(Schema)} adds
+     */
+    int getNumAttrs() {
+        return m_colSpec.m_cols.length * 2;
+    }
+
+    /**
+     * @return column attributes of the row, null if not found. May be shared
+     *         with the cache, so don't modify it.
+     */
+    Tuple lookup(byte[] key) throws IOException {
+        init();
+        if (m_cache == null)
+            return toColumns(get(newGet(key)));
+
+        ByteBuffer cacheKey = ByteBuffer.wrap(key);
+        Tuple columns = m_cache.get(cacheKey);
+        if (columns != null) {
+            countCache(COUNTER_CACHE_HITS, 1);
+            return columns == NOT_FOUND ? null : columns;
+        }
+        countCache(COUNTER_CACHE_MISSES, 1);
+        columns = toColumns(get(newGet(key)));
+        m_cache.put(copyKey(key), columns == null ? NOT_FOUND : columns);
+        return columns;
+    }
+
+    /**
+     * multi-get. Rows are retrieved with one call per batch of keys (not found
+     * in the cache, if any).
+     * 
+     * @param keys
+     *            row keys, may contain nulls
+     * @return column attributes of the rows in the order of the keys, nulls
+     *         for rows not found and null keys.
+     */
+    Tuple[] lookup(List<byte[]> keys, int batchSize) throws IOException {
+        init();
+        Tuple[] columns = new Tuple[keys.size()];
+        int[] toGet = new int[keys.size()];
+        int numToGet = 0, hits = 0;
+        for (int i = 0; i < columns.length; i++) {
+            byte[] key = keys.get(i);
+            if (key == null)
+                continue;
+            Tuple cached = m_cache == null ? null : m_cache.get(ByteBuffer.wrap(key));
+            if (cached == null)
+                toGet[numToGet++] = i;
+            else {
+                hits++;
+                columns[i] = cached == NOT_FOUND ? null : cached;
+            }
+        }
+        if (m_cache != null) {
+            countCache(COUNTER_CACHE_HITS, hits);
+            countCache(COUNTER_CACHE_MISSES, numToGet);
+        }
+
+        if (m_executor == null) {
+            for (int start = 0; start < numToGet; start += batchSize) {
+                int end = Math.min(start + batchSize, numToGet);
+                storeResults(m_htable.get(newGets(keys, toGet, start, end)), keys, toGet, start, columns);
+            }
+            return columns;
+        }
+
+        // keep up to max in flight batches going while converting the
+        // earliest one.
+        LinkedList<Future<Result[]>> inFlight = new LinkedList<Future<Result[]>>();
+        int submitted = 0;
+        try {
+            for (int start = 0; start < numToGet; start += batchSize) {
+                while (submitted < numToGet && inFlight.size() < m_maxInFlight) {
+                    int end = Math.min(submitted + batchSize, numToGet);
+                    inFlight.add(m_executor.submit(new BatchGet(newGets(keys, toGet, submitted, end))));
+                    submitted = end;
+                }
+                storeResults(inFlight.removeFirst().get(), keys, toGet, start, columns);
+            }
+            return columns;
+        } catch (InterruptedException exc) {
+            Thread.currentThread().interrupt();
+            throw new IOException(exc);
+        } catch (ExecutionException exc) {
+            if (exc.getCause() instanceof IOException)
+                throw (IOException) exc.getCause();
+            throw new IOException(exc.getCause());
+        } finally {
+            // batches already running are let finish, interrupting hbase
+            // client calls may break their connections
+            for (Future<Result[]> f : inFlight)
+                f.cancel(false);
+        }
+    }
+
+    /**
+     * releases the table and worker threads, if any.
+     */
+    void close() throws IOException {
+        if (m_executor != null) {
+            m_executor.shutdown();
+            m_executor = null;
+        }
+        if (m_htablePool != null) {
+            m_htablePool.close();
+            m_htablePool = null;
+        }
+        if (m_htable != null) {
+            m_htable.close();
+            m_htable = null;
+        }
+        m_tupleFactory = null;
+    }
+
+    private Result get(Get get) throws IOException {
+        if (m_htable != null)
+            return m_htable.get(get);
+        HTableInterface htable = m_htablePool.getTable(m_table);
+        try {
+            return htable.get(get);
+        } finally {
+            htable.close();
+        }
+    }
+
+    private List<Get> newGets(List<byte[]> keys, int[] toGet, int start, int end) {
+        List<Get> gets = new ArrayList<Get>(end - start);
+        for (int i = start; i < end; i++)
+            gets.add(newGet(keys.get(toGet[i])));
+        return gets;
+    }
+
+    private void storeResults(Result[] results, List<byte[]> keys, int[] toGet, int start, Tuple[] columns)
+        throws IOException {
+        for (int i = 0; i < results.length; i++) {
+            Tuple rowColumns = toColumns(results[i]);
+            columns[toGet[start + i]] = rowColumns;
+            if (m_cache != null)
+                m_cache.put(copyKey(keys.get(toGet[start + i])), rowColumns == null ? NOT_FOUND : rowColumns);
+        }
+    }
+
+    private Tuple toColumns(Result result) throws IOException {
+        if (result == null || result.isEmpty())
+            return null;
+        Tuple tuple = m_tupleFactory.newTuple();
+        appendColumns(result, tuple);
+        return tuple;
+    }
+
+    /**
+     * append column value and timestamp attributes for every column in the
+     * spec to the tuple. Nulls for columns missing in the result.
+     */
+    void appendColumns(Result result, Tuple tuple) throws IOException {
+        m_colSpec.appendColumns(result, tuple, m_tupleFactory);
+    }
+
+    TupleFactory getTupleFactory() {
+        return m_tupleFactory;
+    }
+
+    private void countCache(String counter, long amount) {
+        if (amount == 0)
+            return;
+        PigStatusReporter reporter = PigStatusReporter.getInstance();
+        Counter c = reporter == null ? null : reporter.getCounter(COUNTER_GROUP, counter);
+        if (c != null)
+            c.increment(amount);
+    }
+
+    private static ByteBuffer copyKey(byte[] key) {
+        return ByteBuffer.wrap(Arrays.copyOf(key, key.length));
+    }
+
+    private Get newGet(byte[] key) {
+        Get get = new Get(key);
+        for (int i = 0; i < m_colSpec.m_cols.length; i++)
+            get.addColumn(m_colSpec.m_fams[i], m_colSpec.m_cols[i]);
+        return get;
+    }
+
+    private void init() throws IOException {
+        if (m_tupleFactory != null)
+            return;
+        Configuration hbaseConfig = HBaseConfiguration.create(UDFContext.getUDFContext().getJobConf());
+        m_tupleFactory = TupleFactory.getInstance();
+
+        int cacheMaxEntries = hbaseConfig.getInt(CACHE_MAX_ENTRIES_PROP, 0);
+        if (cacheMaxEntries > 0)
+            m_cache = new ResultCache(cacheMaxEntries, hbaseConfig.getLong(CACHE_MAX_BYTES_PROP,
+                                                                           DEFAULT_CACHE_MAX_BYTES));
+
+        int asyncThreads = hbaseConfig.getInt(ASYNC_THREADS_PROP, 0);
+        if (asyncThreads > 0) {
+            // HTable is not thread safe, so workers (and single gets) take
+            // theirs from the pool
+            m_htablePool = new HTablePool(hbaseConfig, asyncThreads);
+            m_executor = Executors.newFixedThreadPool(asyncThreads, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "HBaseGet-async");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            m_maxInFlight = Math.max(1, hbaseConfig.getInt(ASYNC_MAX_IN_FLIGHT_PROP, asyncThreads * 2));
+        } else
+            m_htable = new HTable(hbaseConfig, m_table); // released in close()
+    }
+
+    private final class BatchGet implements Callable<Result[]> {
+
+        private final List<Get> m_gets;
+
+        BatchGet(List<Get> gets) {
+            super();
+            m_gets = gets;
+        }
+
+        @Override
+        public Result[] call() throws IOException {
+            HTableInterface htable = m_htablePool.getTable(m_table);
+            try {
+                return htable.get(m_gets);
+            } finally {
+                htable.close();
+            }
+        }
+    }
+
+    // cached marker of rows not found
+    private static final Tuple NOT_FOUND = TupleFactory.getInstance().newTuple(0);
+
+    /**
+     * LRU cache of converted rows bounded by both number of entries and their
+     * estimated size.
+     */
+    private static final class ResultCache extends LinkedHashMap<ByteBuffer, Tuple> {
+
+        private static final long serialVersionUID = 1L;
+        // rough per entry overhead: map entry, key buffer and array headers
+        private static final long ENTRY_OVERHEAD   = 128;
+
+        private final int         m_maxEntries;
+        private final long        m_maxBytes;
+        private long              m_bytes;
+
+        ResultCache(int maxEntries, long maxBytes) {
+            super(16, 0.75f, true);
+            m_maxEntries = maxEntries;
+            m_maxBytes = maxBytes;
+        }
+
+        @Override
+        public Tuple put(ByteBuffer key, Tuple value) {
+            Tuple old = super.put(key, value);
+            if (old != null)
+                m_bytes -= sizeOf(key, old);
+            m_bytes += sizeOf(key, value);
+
+            // evict least recently used ones
+            Iterator<Map.Entry<ByteBuffer, Tuple>> iter = entrySet().iterator();
+            while ((size() > m_maxEntries || m_bytes > m_maxBytes) && iter.hasNext()) {
+                Map.Entry<ByteBuffer, Tuple> eldest = iter.next();
+                m_bytes -= sizeOf(eldest.getKey(), eldest.getValue());
+                iter.remove();
+            }
+            return old;
+        }
+
+        private static long sizeOf(ByteBuffer key, Tuple value) {
+            return ENTRY_OVERHEAD + key.capacity() + value.getMemorySize();
+        }
+    }
+
+}
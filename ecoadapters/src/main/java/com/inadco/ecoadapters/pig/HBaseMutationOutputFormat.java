@@ -0,0 +1,201 @@
+/**
+ *
+ *  Copyright © 2010, 2011 Inadco, Inc. All rights reserved.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ *
+ */
+package com.inadco.ecoadapters.pig;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.HBaseConfiguration;
+import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.client.Delete;
+import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.hbase.client.Mutation;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.mapreduce.TableOutputFormat;
+import org.apache.hadoop.hbase.zookeeper.ZKUtil;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.mapreduce.RecordWriter;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+
+/**
+ * {@link TableOutputFormat} with explicit control over the write path for
+ * {@link HBaseProtobufStorage}. Puts and deletes of a record go into the same
+ * client side batch, which is sent with a single {@link HTable#batch(List)}
+ * call once it reaches the write buffer size or max number of mutations
+ * (stock record writer sends every delete in a separate rpc). Optionally,
+ * mutations skip the write ahead log, which is ok for tables that can be
+ * re-created from the source data.
+ * <P>
+ * 
+ * Settings come from job configuration (e.g. pig's <code>set</code>):
+ * {@link #WRITE_BUFFER_PROP}, {@link #MAX_BATCH_PROP}, {@link #SKIP_WAL_PROP}.
+ * <P>
+ * 
+ * If the same row comes again while its previous mutations are still pending,
+ * the batch is sent first, so that later writes of the row still win.
+ * <P>
+ * 
+ * Unlike the stock format, setting the configuration doesn't open a table,
+ * only the record writer does (and closes it).
+ * 
+ * @author dmitriy
+ * 
+ */
+class HBaseMutationOutputFormat extends TableOutputFormat<Object> {
+
+    static final String WRITE_BUFFER_PROP    = "inadco.HBaseProtobufStorage.writeBuffer";
+    static final String MAX_BATCH_PROP       = "inadco.HBaseProtobufStorage.maxBatch";
+    static final String SKIP_WAL_PROP        = "inadco.HBaseProtobufStorage.skipWAL";
+
+    static final String HBASE_WRITE_BUFFER   = "hbase.client.write.buffer";
+    static final long   DEFAULT_WRITE_BUFFER = 2L << 20;
+    static final int    DEFAULT_MAX_BATCH    = 1000;
+
+    private Configuration m_conf;
+
+    /**
+     * same as {@link TableOutputFormat#setConf(Configuration)} minus opening
+     * the table, which would never be closed.
+     */
+    @Override
+    public void setConf(Configuration otherConf) {
+        Configuration conf = HBaseConfiguration.create(otherConf);
+        String table = conf.get(OUTPUT_TABLE);
+        if (table == null || table.length() == 0)
+            throw new IllegalArgumentException("Must specify table name");
+
+        String address = conf.get(QUORUM_ADDRESS);
+        int zkClientPort = conf.getInt(QUORUM_PORT, 0);
+        String serverClass = conf.get(REGION_SERVER_CLASS);
+        String serverImpl = conf.get(REGION_SERVER_IMPL);
+        try {
+            if (address != null)
+                ZKUtil.applyClusterKeyToConf(conf, address);
+        } catch (IOException exc) {
+            throw new IllegalArgumentException(exc);
+        }
+        if (serverClass != null) {
+            conf.set(HConstants.REGION_SERVER_CLASS, serverClass);
+            conf.set(HConstants.REGION_SERVER_IMPL, serverImpl);
+        }
+        if (zkClientPort != 0)
+            conf.setInt(HConstants.ZOOKEEPER_CLIENT_PORT, zkClientPort);
+        m_conf = conf;
+    }
+
+    @Override
+    public Configuration getConf() {
+        return m_conf;
+    }
+
+    @Override
+    public RecordWriter<Object, Writable> getRecordWriter(TaskAttemptContext context) throws IOException,
+        InterruptedException {
+        Configuration conf = getConf();
+        HTable htable = new HTable(conf, conf.get(OUTPUT_TABLE));
+        return new MutationBatchWriter(htable,
+                                       conf.getLong(WRITE_BUFFER_PROP,
+                                                    conf.getLong(HBASE_WRITE_BUFFER, DEFAULT_WRITE_BUFFER)),
+                                       conf.getInt(MAX_BATCH_PROP, DEFAULT_MAX_BATCH),
+                                       conf.getBoolean(SKIP_WAL_PROP, false));
+    }
+
+    static class MutationBatchWriter extends RecordWriter<Object, Writable> {
+
+        private final HTable          m_htable;
+        private final long            m_writeBuffer;
+        private final int             m_maxBatch;
+        private final boolean         m_writeToWAL;
+        private final List<Mutation>  m_pending     = new ArrayList<Mutation>();
+        private final Set<ByteBuffer> m_pendingRows = new HashSet<ByteBuffer>();
+        private long                  m_pendingBytes;
+
+        MutationBatchWriter(HTable htable, long writeBuffer, int maxBatch, boolean skipWAL) {
+            super();
+            m_htable = htable;
+            m_writeBuffer = writeBuffer;
+            m_maxBatch = Math.max(1, maxBatch);
+            m_writeToWAL = !skipWAL;
+        }
+
+        /**
+         * queue mutations of a single row.
+         * 
+         * @param put
+         *            may be null
+         * @param delete
+         *            may be null
+         */
+        void write(Put put, Delete delete) throws IOException, InterruptedException {
+            Mutation m = put != null ? put : delete;
+            if (m == null)
+                return;
+            ByteBuffer row = ByteBuffer.wrap(m.getRow());
+            if (m_pendingRows.contains(row))
+                flush();
+            m_pendingRows.add(row);
+            if (put != null) {
+                put.setWriteToWAL(m_writeToWAL);
+                m_pending.add(put);
+                m_pendingBytes += put.heapSize();
+            }
+            if (delete != null) {
+                delete.setWriteToWAL(m_writeToWAL);
+                m_pending.add(delete);
+                m_pendingBytes += delete.getRow().length;
+            }
+            if (m_pending.size() >= m_maxBatch || m_pendingBytes >= m_writeBuffer)
+                flush();
+        }
+
+        @Override
+        public void write(Object key, Writable value) throws IOException, InterruptedException {
+            if (value instanceof Put)
+                write((Put) value, null);
+            else if (value instanceof Delete)
+                write(null, (Delete) value);
+            else
+                throw new IOException("Pass a Put or a Delete.");
+        }
+
+        @Override
+        public void close(TaskAttemptContext context) throws IOException, InterruptedException {
+            try {
+                flush();
+            } finally {
+                m_htable.close();
+            }
+        }
+
+        private void flush() throws IOException, InterruptedException {
+            if (m_pending.isEmpty())
+                return;
+            m_htable.batch(m_pending);
+            m_pending.clear();
+            m_pendingRows.clear();
+            m_pendingBytes = 0;
+        }
+    }
+
+}
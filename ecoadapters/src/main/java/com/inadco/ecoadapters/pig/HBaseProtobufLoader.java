@@ -21,15 +21,33 @@ package com.inadco.ecoadapters.pig;
 import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
-import java.util.Map.Entry;
-import java.util.NavigableMap;
-
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.GnuParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.commons.lang.StringUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.hbase.HBaseConfiguration;
 import org.apache.hadoop.hbase.client.Result;
 import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.filter.BinaryComparator;
+import org.apache.hadoop.hbase.filter.CompareFilter.CompareOp;
+import org.apache.hadoop.hbase.filter.FamilyFilter;
+import org.apache.hadoop.hbase.filter.Filter;
+import org.apache.hadoop.hbase.filter.FilterList;
+import org.apache.hadoop.hbase.filter.FirstKeyOnlyFilter;
+import org.apache.hadoop.hbase.filter.KeyOnlyFilter;
+import org.apache.hadoop.hbase.filter.QualifierFilter;
 import org.apache.hadoop.hbase.io.ImmutableBytesWritable;
 import org.apache.hadoop.hbase.mapreduce.TableInputFormat;
 import org.apache.hadoop.hbase.util.Base64;
@@ -40,6 +58,7 @@ import org.apache.hadoop.mapreduce.RecordReader;
 import org.apache.pig.Expression;
 import org.apache.pig.LoadFunc;
 import org.apache.pig.LoadMetadata;
+import org.apache.pig.LoadPushDown;
 import org.apache.pig.PigException;
 import org.apache.pig.ResourceSchema;
 import org.apache.pig.ResourceStatistics;
@@ -48,10 +67,12 @@ import org.apache.pig.data.DataByteArray;
 import org.apache.pig.data.DataType;
 import org.apache.pig.data.Tuple;
 import org.apache.pig.data.TupleFactory;
+import org.apache.pig.impl.logicalLayer.FrontendException;
 import org.apache.pig.impl.logicalLayer.schema.Schema;
 import org.apache.pig.impl.logicalLayer.schema.Schema.FieldSchema;
+import org.apache.pig.impl.util.ObjectSerializer;
+import org.apache.pig.impl.util.UDFContext;
 
-import com.google.protobuf.Message;
 import com.inadco.ecoadapters.EcoUtil;
 
 /**
@@ -99,6 +120,30 @@ import com.inadco.ecoadapters.EcoUtil;
  * The table name is passed in as the pig's LOAD string.
  * <P>
  * 
+ * Optional second argument tunes the scan (all options are optional):
+ * 
+ * <PRE>
+ * -caching n             ; rows per scanner rpc (Scan.setCaching)
+ * -batch n               ; max columns per Result (Scan.setBatch). Rows wider than that
+ *                        ; come back as several tuples, so only use it with many columns.
+ * -noCacheBlocks         ; don't populate region server block cache with the scanned blocks
+ * -maxVersions n         ; versions to fetch per column (only the latest one is loaded)
+ * -minTimestamp ts       ; time range of the cells to scan, in millis,
+ * -maxTimestamp ts       ; min inclusive, max exclusive
+ * -startRow key          ; row key range, start inclusive, stop exclusive. Keys are
+ * -stopRow key           ; in Bytes.toStringBinary() form, i.e. \xNN escapes are ok
+ * -usedColumnsOnly       ; scan just the columns the script uses, skipping rows having
+ *                        ; none of them (see projections below)
+ * </PRE>
+ * 
+ * e.g.
+ * 
+ * <pre>
+ * A = load 'mytab' using com.inadco.ecoadapters.pig.HBaseProtobufLoader('mycolspec',
+ *     '-caching 1000 -noCacheBlocks -startRow 2011-01-01 -stopRow 2011-02-01');
+ * </pre>
+ * <P>
+ * 
  * Example:
  * <P>
  * 
@@ -115,11 +160,11 @@ import com.inadco.ecoadapters.EcoUtil;
  * 
  * the schema contains tuple filled with key and columns schemas (optionally
  * expanded based on protobuf message if specified), followed by their
- * timestamps:
+ * timestamps, and the key once again as a chararray (utf-8 decoded):
  * <P>
  * 
  * <pre>
- * pig-schema = HKEY *(column1_schema column1_timestamp)
+ * pig-schema = HKEY *(column1_schema column1_timestamp) HKEY::string
  * </pre>
  * 
  * For the example above the describe produces:
@@ -128,21 +173,58 @@ import com.inadco.ecoadapters.EcoUtil;
  * <pre>
  * describe CR;
  *   
- *   CR: {HKEY: bytearray,contextrating::rating_2: (vendorId: int,contextRegressor: (xi: ... ),ERROR___: chararray),contextrating::rating_2::timestamp: long}
+ *   CR: {HKEY: bytearray,contextrating::rating_2: (vendorId: int,contextRegressor: (xi: ... ),ERROR___: chararray),contextrating::rating_2::timestamp: long,HKEY::string: chararray}
  * </pre>
  * <P>
  * 
  * As usual, ERROR___ is a pseudo column to contain stacktraces for
  * deserialization errors. (so one may count # of deserialization errors, for
  * example).
+ * <P>
+ * 
+ * Filters on HKEY::string and column timestamps are pushed into the loader
+ * (pig 0.11 pushes them as partition filters, see
+ * {@link #getPartitionKeys(String, Job)}). Key comparisons, matches and lower
+ * timestamp bounds are turned into scan row range, row filters and time range
+ * (see {@link HBaseScanConstraints}), so region servers don't send rows that
+ * can't pass, e.g.
+ * 
+ * <pre>
+ * CR = filter CR by HKEY::string >= '2011-01-01' and contextrating::rating_2::timestamp >= $lastHour;
+ * </pre>
+ * 
+ * The loader evaluates the rest of the filter itself. Conditions on HKEY
+ * are not pushed: pig casts the bytearray to compare it with a literal, and
+ * won't push a condition on a cast key. They stay in the script's filter,
+ * while conditions on the other keys of the same filter are still pushed.
+ * HKEY::string compares as the utf-8 bytes of the key only for keys that
+ * are valid utf-8 text.
+ * <P>
+ * 
+ * Projections are pushed into the loader too: columns the script doesn't use
+ * (neither their values nor timestamps) are not decoded, and are fetched only
+ * as much as it takes to tell the row is there (the first cell of rows
+ * having none of the used columns, just the key for key-only projections). So
+ * the loader returns the same rows with or without the projection. The price
+ * is that region servers still read the stores of all families in the column
+ * spec. With <code>-usedColumnsOnly</code>, only the used columns (and so only
+ * their families) are scanned, and rows having none of them are not loaded at
+ * all, as if the other columns weren't in the spec.
  * 
  * @author dmitriy
  * 
  */
-public class HBaseProtobufLoader extends LoadFunc implements LoadMetadata {
+public class HBaseProtobufLoader extends LoadFunc implements LoadMetadata, LoadPushDown {
 
     private static final Log                             LOG            = LogFactory.getLog(HBaseProtobufLoader.class);
 
+    private static final String FILTER_PROPERTY           = "inadco.HBaseProtobufLoader.filter";
+    private static final String FILTER_ATTRS_PROPERTY     = "inadco.HBaseProtobufLoader.filterAttrs";
+    private static final String SCAN_CONSTRAINTS_PROPERTY = "inadco.HBaseProtobufLoader.scanConstraints";
+    private static final String PROJECTION_PROPERTY       = "inadco.HBaseProtobufLoader.projection";
+
+    static final String         HKEY_STRING_ALIAS         = HBaseProtobufStorage.HKEY_ALIAS + "::string";
+
     private HBaseColSpec                                 m_colSpec;
 
     private TupleFactory                                 m_tupleFactory = TupleFactory.getInstance();
@@ -150,6 +232,15 @@ public class HBaseProtobufLoader extends LoadFunc implements LoadMetadata {
     private Configuration                                m_conf         = new Configuration();
     private RecordReader<ImmutableBytesWritable, Result> m_reader;
     private Scan                                         m_scan;
+    private String                                       m_udfContextSignature;
+    private TuplePredicate                               m_filter;
+    private int[]                                        m_filterAttrs;
+    private int[]                                        m_projection;
+    // columns the projection and filter need, null if all
+    private boolean[]                                    m_decoded;
+    // whether the projection or filter needs HKEY::string
+    private boolean                                      m_keyString    = true;
+    private boolean                                      m_usedColumnsOnly;
 
     /**
      * so we try to do simple parsing here . the column spec is the same as in
@@ -161,6 +252,17 @@ public class HBaseProtobufLoader extends LoadFunc implements LoadMetadata {
      * @throws PigException
      */
     public HBaseProtobufLoader(String colSpecStr) throws PigException {
+        this(colSpecStr, "");
+    }
+
+    /**
+     * @param colSpecStr
+     *            column spec
+     * @param scanOptions
+     *            scan tuning options, see above.
+     * @throws PigException
+     */
+    public HBaseProtobufLoader(String colSpecStr, String scanOptions) throws PigException {
         super();
         try {
             m_colSpec = new HBaseColSpec(colSpecStr, true);
@@ -169,6 +271,8 @@ public class HBaseProtobufLoader extends LoadFunc implements LoadMetadata {
             for (int i = 0; i < m_colSpec.m_cols.length; i++)
                 m_scan.addColumn(m_colSpec.m_fams[i], m_colSpec.m_cols[i]);
 
+            applyScanOptions(scanOptions);
+
         } catch (PigException exc) {
             throw exc;
         } catch (Throwable exc) {
@@ -176,10 +280,78 @@ public class HBaseProtobufLoader extends LoadFunc implements LoadMetadata {
         }
     }
 
+    private static Options scanOptions() {
+        Options options = new Options();
+        options.addOption("caching", true, "scanner caching");
+        options.addOption("batch", true, "max columns per result");
+        options.addOption("noCacheBlocks", false, "don't cache scanned blocks");
+        options.addOption("maxVersions", true, "max versions");
+        options.addOption("minTimestamp", true, "min timestamp, inclusive");
+        options.addOption("maxTimestamp", true, "max timestamp, exclusive");
+        options.addOption("startRow", true, "start row, inclusive");
+        options.addOption("stopRow", true, "stop row, exclusive");
+        options.addOption("usedColumnsOnly", false, "skip rows without the columns used");
+        return options;
+    }
+
+    private void applyScanOptions(String scanOptions) throws IOException, PigException {
+        Scan scan = m_scan;
+        if (scanOptions == null || scanOptions.trim().length() == 0)
+            return;
+        CommandLine cl;
+        try {
+            cl = new GnuParser().parse(scanOptions(), scanOptions.trim().split("\\s+"));
+        } catch (ParseException exc) {
+            throw badScanOptions(scanOptions, exc.getMessage());
+        }
+        if (cl.getArgs().length > 0)
+            throw new PigException(String.format("Unexpected scan options '%s'.",
+                                                 StringUtils.join(cl.getArgs(), ' ')));
+
+        try {
+            if (cl.hasOption("caching"))
+                scan.setCaching(Integer.parseInt(cl.getOptionValue("caching")));
+            if (cl.hasOption("batch"))
+                scan.setBatch(Integer.parseInt(cl.getOptionValue("batch")));
+            if (cl.hasOption("noCacheBlocks"))
+                scan.setCacheBlocks(false);
+            if (cl.hasOption("maxVersions"))
+                scan.setMaxVersions(Integer.parseInt(cl.getOptionValue("maxVersions")));
+            if (cl.hasOption("minTimestamp") || cl.hasOption("maxTimestamp")) {
+                long minTs = cl.hasOption("minTimestamp") ? Long.parseLong(cl.getOptionValue("minTimestamp")) : 0L;
+                long maxTs =
+                    cl.hasOption("maxTimestamp") ? Long.parseLong(cl.getOptionValue("maxTimestamp"))
+                        : Long.MAX_VALUE;
+                scan.setTimeRange(minTs, maxTs);
+            }
+        } catch (NumberFormatException exc) {
+            throw badScanOptions(scanOptions, "number expected, " + exc.getMessage());
+        }
+        if (cl.hasOption("startRow"))
+            scan.setStartRow(Bytes.toBytesBinary(cl.getOptionValue("startRow")));
+        if (cl.hasOption("stopRow"))
+            scan.setStopRow(Bytes.toBytesBinary(cl.getOptionValue("stopRow")));
+        m_usedColumnsOnly = cl.hasOption("usedColumnsOnly");
+    }
+
+    private static PigException badScanOptions(String scanOptions, String reason) {
+        StringWriter usage = new StringWriter();
+        new HelpFormatter().printOptions(new PrintWriter(usage), 80, scanOptions(), 1, 2);
+        return new PigException(String.format("Bad scan options '%s': %s. Available options:\n%s",
+                                              scanOptions,
+                                              reason,
+                                              usage));
+    }
+
     @Override
-    public String[] getPartitionKeys(String arg0, Job arg1) throws IOException {
-        // TODO Auto-generated method stub
-        return null;
+    public String[] getPartitionKeys(String location, Job job) throws IOException {
+        // not real partitions, but this is how pig 0.11 pushes filters into
+        // loaders. Not HKEY, pig would cast it.
+        String[] keys = new String[m_colSpec.m_cols.length + 1];
+        keys[0] = HKEY_STRING_ALIAS;
+        for (int i = 0; i < m_colSpec.m_cols.length; i++)
+            keys[i + 1] = timestampName(i);
+        return keys;
     }
 
     @Override
@@ -191,15 +363,15 @@ public class HBaseProtobufLoader extends LoadFunc implements LoadMetadata {
                                                                                       // key
 
         for (int i = 0; i < m_colSpec.m_pigSchema.length; i++) {
-            String colName = Bytes.toString(m_colSpec.m_fams[i]) + "::" + Bytes.toString(m_colSpec.m_cols[i]);
+            String colName = columnName(i);
             if (m_colSpec.m_pigSchema[i] != null)
                 ps.add(new FieldSchema(colName, m_colSpec.m_pigSchema[i], DataType.TUPLE));
             else
                 ps.add(new FieldSchema(colName, DataType.BYTEARRAY));
-            String timestampName = colName + "::timestamp";
-            ps.add(new FieldSchema(timestampName, DataType.LONG));
+            ps.add(new FieldSchema(timestampName(i), DataType.LONG));
 
         }
+        ps.add(new FieldSchema(HKEY_STRING_ALIAS, DataType.CHARARRAY));
 
         return new ResourceSchema(ps);
     }
@@ -211,9 +383,57 @@ public class HBaseProtobufLoader extends LoadFunc implements LoadMetadata {
     }
 
     @Override
-    public void setPartitionFilter(Expression arg0) throws IOException {
-        // TODO Auto-generated method stub
+    public void setPartitionFilter(Expression expr) throws IOException {
+        List<String> columns = new ArrayList<String>();
+        TuplePredicate filter = TuplePredicate.compile(expr, columns);
+
+        String[] keys = getPartitionKeys(null, null);
+        StringBuilder sb = new StringBuilder();
+        for (String column : columns) {
+            // timestamp of column i is 2+2i.
+            int key = Arrays.asList(keys).indexOf(column);
+            if (key < 0)
+                throw new IOException(String.format("Unknown attribute '%s' in pushed filter.", column));
+            if (sb.length() > 0)
+                sb.append(',');
+            sb.append(key == 0 ? keyStringAttr() : key * 2);
+        }
+
+        if (LOG.isDebugEnabled())
+            LOG.debug("Pushed filter: " + expr);
+
+        Properties props = getUDFProperties();
+        props.setProperty(FILTER_PROPERTY, ObjectSerializer.serialize(filter));
+        props.setProperty(FILTER_ATTRS_PROPERTY, sb.toString());
+        props.setProperty(SCAN_CONSTRAINTS_PROPERTY,
+                          ObjectSerializer.serialize(new HBaseScanConstraints(expr,
+                                                                              keys[0],
+                                                                              Arrays.copyOfRange(keys, 1, keys.length))));
+    }
 
+    @Override
+    public void setUDFContextSignature(String signature) {
+        m_udfContextSignature = signature;
+    }
+
+    @Override
+    public List<OperatorSet> getFeatures() {
+        return Arrays.asList(LoadPushDown.OperatorSet.PROJECTION);
+    }
+
+    @Override
+    public RequiredFieldResponse pushProjection(RequiredFieldList requiredFieldList) throws FrontendException {
+        if (requiredFieldList == null || requiredFieldList.getFields() == null)
+            return new RequiredFieldResponse(false);
+
+        StringBuilder sb = new StringBuilder();
+        for (RequiredField rf : requiredFieldList.getFields()) {
+            if (sb.length() > 0)
+                sb.append(',');
+            sb.append(rf.getIndex());
+        }
+        getUDFProperties().setProperty(PROJECTION_PROPERTY, sb.toString());
+        return new RequiredFieldResponse(true);
     }
 
     @Override
@@ -227,51 +447,26 @@ public class HBaseProtobufLoader extends LoadFunc implements LoadMetadata {
     @Override
     public Tuple getNext() throws IOException {
         try {
-            if (m_reader.nextKeyValue()) {
+            while (m_reader.nextKeyValue()) {
 
-                Tuple tuple = TupleFactory.getInstance().newTuple();
+                Tuple tuple = m_tupleFactory.newTuple();
                 ImmutableBytesWritable key = (ImmutableBytesWritable) m_reader.getCurrentKey();
 
-                tuple.append(new DataByteArray(key.get(), key.getOffset(), key.getLength()));
+                tuple.append(new DataByteArray(key.get(), key.getOffset(), key.getOffset() + key.getLength()));
 
                 Result result = (Result) m_reader.getCurrentValue();
 
-                NavigableMap<byte[], NavigableMap<byte[], NavigableMap<Long, byte[]>>> resMap = result.getMap();
-
-                for (int i = 0; i < m_colSpec.m_cols.length; ++i) {
-
-                    NavigableMap<byte[], NavigableMap<Long, byte[]>> famMap = resMap.get(m_colSpec.m_fams[i]);
-                    if (famMap == null) {
-                        tuple.append(null);
-                        tuple.append(null);
-                        continue;
-                    }
-
-                    NavigableMap<Long, byte[]> colMap = famMap.get(m_colSpec.m_cols[i]);
-                    if (colMap == null) {
-                        tuple.append(null);
-                        tuple.append(null);
-                        continue;
-                    }
-
-                    Entry<Long, byte[]> lastEntry = colMap.lastEntry();
-                    if (lastEntry == null) {
-                        tuple.append(null);
-                        tuple.append(null);
-                        continue;
-                    }
-
-                    byte[] val = lastEntry.getValue();
-                    if (m_colSpec.m_msgBuilder[i] == null)
-                        tuple.append(new DataByteArray(val));
-                    else {
-                        Message msg = m_colSpec.m_msgBuilder[i].clone().mergeFrom(val).build();
-                        tuple.append(PigUtil.protoMessage2PigTuple(msg, m_colSpec.m_msgDesc[i], m_tupleFactory));
-                    }
-
-                    tuple.append(lastEntry.getKey()); // the version
-                }
-                return tuple;
+                m_colSpec.appendColumns(result, tuple, m_tupleFactory, m_decoded);
+                if (m_keyString)
+                    tuple.append(Bytes.toString(key.get(), key.getOffset(), key.getLength()));
+                if (m_filter != null && !m_filter.accept(tuple))
+                    continue;
+                if (m_projection == null)
+                    return tuple;
+                Tuple projected = m_tupleFactory.newTuple(m_projection.length);
+                for (int i = 0; i < m_projection.length; i++)
+                    projected.set(i, tuple.get(m_projection[i]));
+                return projected;
             }
         } catch (InterruptedException e) {
             throw new IOException(e);
@@ -283,6 +478,33 @@ public class HBaseProtobufLoader extends LoadFunc implements LoadMetadata {
     @SuppressWarnings({ "unchecked", "rawtypes" })
     public void prepareToRead(RecordReader reader, PigSplit split) throws IOException {
         m_reader = reader;
+
+        Properties props = getUDFProperties();
+        String filter = props.getProperty(FILTER_PROPERTY);
+        if (filter != null) {
+            m_filterAttrs = parseAttrs(props.getProperty(FILTER_ATTRS_PROPERTY));
+            // evaluated over the whole row tuple
+            m_filter = ((TuplePredicate) ObjectSerializer.deserialize(filter)).withColumns(m_filterAttrs);
+        }
+        String projection = props.getProperty(PROJECTION_PROPERTY);
+        if (projection != null) {
+            m_projection = parseAttrs(projection);
+            m_decoded = new boolean[m_colSpec.m_cols.length];
+            m_keyString = false;
+            for (int attr : m_projection)
+                markUsed(attr);
+            if (m_filterAttrs != null)
+                for (int attr : m_filterAttrs)
+                    markUsed(attr);
+        }
+    }
+
+    private void markUsed(int attr) {
+        int col = columnOf(attr);
+        if (col >= 0)
+            m_decoded[col] = true;
+        else if (attr == keyStringAttr())
+            m_keyString = true;
     }
 
     static String HBASE_ZK_CLIENTPORT_PROP = "hbase.zookeeper.property.clientPort";
@@ -316,11 +538,102 @@ public class HBaseProtobufLoader extends LoadFunc implements LoadMetadata {
         else
             jc.set(TableInputFormat.INPUT_TABLE, location);
 
-        jc.set(TableInputFormat.SCAN, convertScanToString(m_scan));
+        // pushed projection and filter, if any, narrow the scan down
+        Properties props = getUDFProperties();
+        Scan scan = new Scan(m_scan);
+        boolean[] scanned = null;
+        String projection = props.getProperty(PROJECTION_PROPERTY);
+        if (projection != null) {
+            scanned = new boolean[m_colSpec.m_cols.length];
+            boolean any = false;
+            String filterAttrs = props.getProperty(FILTER_ATTRS_PROPERTY);
+            for (int attr : parseAttrs(filterAttrs == null ? projection : projection + "," + filterAttrs)) {
+                int col = columnOf(attr);
+                if (col >= 0) {
+                    scanned[col] = true;
+                    any = true;
+                }
+            }
+            if (any && m_usedColumnsOnly) {
+                // scan is a copy, its family map too
+                scan.getFamilyMap().clear();
+                for (int i = 0; i < scanned.length; i++)
+                    if (scanned[i])
+                        scan.addColumn(m_colSpec.m_fams[i], m_colSpec.m_cols[i]);
+            } else if (any) {
+                // the other columns are still scanned so that rows having
+                // none of the projected ones are loaded all the same, but
+                // only the first cell of such rows is fetched.
+                List<Filter> filters = new ArrayList<Filter>();
+                filters.add(new FirstKeyOnlyFilter());
+                for (int i = 0; i < scanned.length; i++)
+                    if (scanned[i])
+                        filters.add(columnFilter(i));
+                if (filters.size() <= scanned.length)
+                    scan.setFilter(new FilterList(FilterList.Operator.MUST_PASS_ONE, filters));
+            } else {
+                // keys only. Still need to see if rows have any of the columns.
+                scanned = null;
+                List<Filter> filters = new ArrayList<Filter>();
+                filters.add(new FirstKeyOnlyFilter());
+                filters.add(new KeyOnlyFilter());
+                scan.setFilter(new FilterList(FilterList.Operator.MUST_PASS_ALL, filters));
+            }
+        }
+        // time range bounds only need to hold for the used columns: rows it
+        // hides altogether have none of the bounded columns and fail the
+        // filter anyway
+        String constraints = props.getProperty(SCAN_CONSTRAINTS_PROPERTY);
+        if (constraints != null)
+            ((HBaseScanConstraints) ObjectSerializer.deserialize(constraints)).apply(scan, scanned);
+
+        jc.set(TableInputFormat.SCAN, convertScanToString(scan));
 
         m_conf = jc;
     }
 
+    /**
+     * @return filter passing cells of the column only
+     */
+    private Filter columnFilter(int col) {
+        List<Filter> filters = new ArrayList<Filter>();
+        filters.add(new FamilyFilter(CompareOp.EQUAL, new BinaryComparator(m_colSpec.m_fams[col])));
+        filters.add(new QualifierFilter(CompareOp.EQUAL, new BinaryComparator(m_colSpec.m_cols[col])));
+        return new FilterList(FilterList.Operator.MUST_PASS_ALL, filters);
+    }
+
+    /**
+     * @return column of a value or timestamp attribute, -1 for key attributes
+     */
+    private int columnOf(int attr) {
+        // column i is at 1+2i, its timestamp at 2+2i
+        return attr > 0 && attr < keyStringAttr() ? (attr - 1) / 2 : -1;
+    }
+
+    private int keyStringAttr() {
+        return 1 + 2 * m_colSpec.m_cols.length;
+    }
+
+    private String columnName(int col) {
+        return Bytes.toString(m_colSpec.m_fams[col]) + "::" + Bytes.toString(m_colSpec.m_cols[col]);
+    }
+
+    private String timestampName(int col) {
+        return columnName(col) + "::timestamp";
+    }
+
+    private static int[] parseAttrs(String attrsStr) {
+        String[] attrStrs = attrsStr.length() == 0 ? new String[0] : attrsStr.split(",");
+        int[] attrs = new int[attrStrs.length];
+        for (int i = 0; i < attrs.length; i++)
+            attrs[i] = Integer.parseInt(attrStrs[i]);
+        return attrs;
+    }
+
+    private Properties getUDFProperties() {
+        return UDFContext.getUDFContext().getUDFProperties(getClass(), new String[] { m_udfContextSignature });
+    }
+
     private static String convertScanToString(Scan scan) {
 
         try {
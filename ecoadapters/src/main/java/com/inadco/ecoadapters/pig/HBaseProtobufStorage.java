@@ -26,7 +26,6 @@ import org.apache.hadoop.hbase.client.Delete;
 import org.apache.hadoop.hbase.client.Put;
 import org.apache.hadoop.hbase.mapreduce.TableOutputFormat;
 import org.apache.hadoop.hbase.util.Bytes;
-import org.apache.hadoop.io.NullWritable;
 import org.apache.hadoop.mapreduce.Job;
 import org.apache.hadoop.mapreduce.OutputFormat;
 import org.apache.hadoop.mapreduce.RecordWriter;
@@ -39,6 +38,7 @@ import org.apache.pig.impl.logicalLayer.schema.Schema;
 import org.apache.pig.impl.logicalLayer.schema.Schema.FieldSchema;
 import org.apache.pig.impl.util.UDFContext;
 
+import com.inadco.ecoadapters.pig.HBaseMutationOutputFormat.MutationBatchWriter;
 import com.inadco.ecoadapters.pig.PigUtil.Tuple2ProtoMap;
 
 /**
@@ -64,6 +64,16 @@ import com.inadco.ecoadapters.pig.PigUtil.Tuple2ProtoMap;
  * output may result in either {@link Put} or {@link Delete} or both.
  * <P>
  * 
+ * Puts and deletes are sent in client side batches, see
+ * {@link HBaseMutationOutputFormat} for the write buffer, batch size and WAL
+ * settings, e.g.
+ * 
+ * <pre>
+ * set inadco.HBaseProtobufStorage.writeBuffer 8388608;
+ * set inadco.HBaseProtobufStorage.skipWAL true;
+ * </pre>
+ * <P>
+ * 
  * It is fatal to return a null for the {@link #HKEY_ALIAS} pig field.
  * <P>
  * 
@@ -91,7 +101,7 @@ public class HBaseProtobufStorage extends StoreFunc {
     private int                                m_keyPigSchemaIndex;
     private PigUtil.Pig2HBaseStrategy[]        m_colConvStrategies;
     private PigUtil.Pig2HBaseStrategy          m_keyConvStrategy;
-    private RecordWriter<NullWritable, Object> m_recordWriter;
+    private MutationBatchWriter                m_recordWriter;
     private String                             m_instanceName;
 
     private Configuration                      m_conf;
@@ -116,7 +126,7 @@ public class HBaseProtobufStorage extends StoreFunc {
     @SuppressWarnings("rawtypes")
     @Override
     public OutputFormat getOutputFormat() throws IOException {
-        TableOutputFormat tof = new TableOutputFormat<Object>();
+        TableOutputFormat tof = new HBaseMutationOutputFormat();
         if (m_conf != null)
             tof.setConf(m_conf);
 
@@ -127,7 +137,7 @@ public class HBaseProtobufStorage extends StoreFunc {
     @SuppressWarnings({ "unchecked", "rawtypes" })
     @Override
     public void prepareToWrite(RecordWriter rw) throws IOException {
-        m_recordWriter = rw;
+        m_recordWriter = (MutationBatchWriter) rw;
     }
 
     @Override
@@ -156,10 +166,7 @@ public class HBaseProtobufStorage extends StoreFunc {
         }
 
         try {
-            if (put != null)
-                m_recordWriter.write(NullWritable.get(), put);
-            if (delete != null)
-                m_recordWriter.write(NullWritable.get(), delete);
+            m_recordWriter.write(put, delete);
         } catch (InterruptedException exc) {
             throw new IOException("interrupted", exc);
         }
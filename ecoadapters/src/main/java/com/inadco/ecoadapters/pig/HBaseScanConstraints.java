@@ -0,0 +1,319 @@
+/**
+ *
+ *  Copyright © 2010, 2011 Inadco, Inc. All rights reserved.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ *
+ */
+package com.inadco.ecoadapters.pig;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.filter.BinaryComparator;
+import org.apache.hadoop.hbase.filter.CompareFilter.CompareOp;
+import org.apache.hadoop.hbase.filter.Filter;
+import org.apache.hadoop.hbase.filter.FilterList;
+import org.apache.hadoop.hbase.filter.PrefixFilter;
+import org.apache.hadoop.hbase.filter.RegexStringComparator;
+import org.apache.hadoop.hbase.filter.RowFilter;
+import org.apache.hadoop.hbase.io.TimeRange;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.pig.Expression;
+import org.apache.pig.Expression.BinaryExpression;
+import org.apache.pig.data.DataByteArray;
+
+/**
+ * The part of a filter pushed into {@link HBaseProtobufLoader} that hbase can
+ * apply on its own, so rows are discarded on region servers: the row key range,
+ * row key prefix, regex and inequality filters, and the lower bound of the
+ * time range.
+ * <P>
+ * 
+ * Only top level conjuncts comparing the key or column timestamps with
+ * constants are taken into account. Everything here is at most as selective as
+ * the filter itself, the loader still evaluates the entire filter on the rows
+ * it gets.
+ * <P>
+ * 
+ * The time range applies to all cells of the scan. Lower bound of a column
+ * timestamp doesn't change the latest cell of rows passing the filter, but an
+ * upper bound would (an older version would show up instead), so only lower
+ * bounds are used, and only if every column the scan fetches has one.
+ * <P>
+ * 
+ * Pig only pushes matches down since 0.12, so the regex filters kick in there.
+ * <P>
+ * 
+ * Keys are compared as bytes (character constants as their utf-8 encoding).
+ * 
+ * @author dmitriy
+ * 
+ */
+class HBaseScanConstraints implements Serializable {
+
+    private static final long  serialVersionUID = 1L;
+
+    private byte[]             m_startRow       = HConstants.EMPTY_START_ROW;
+    private byte[]             m_stopRow        = HConstants.EMPTY_END_ROW;
+    private final List<byte[]> m_prefixes       = new ArrayList<byte[]>();
+    private final List<String> m_rowRegexes     = new ArrayList<String>();
+    private final List<byte[]> m_excludedRows   = new ArrayList<byte[]>();
+    private final String       m_keyColumn;
+    private final String[]     m_tsColumns;
+    // per timestamp column, null if no lower bound
+    private final Long[]       m_minTimestamps;
+
+    /**
+     * @param keyColumn
+     *            name of the row key attribute
+     * @param tsColumns
+     *            names of the timestamp attributes of all columns in the scan
+     */
+    HBaseScanConstraints(Expression expr, String keyColumn, String[] tsColumns) {
+        super();
+        m_keyColumn = keyColumn;
+        m_tsColumns = tsColumns;
+        m_minTimestamps = new Long[tsColumns.length];
+        collect(expr);
+    }
+
+    /**
+     * narrow the scan down.
+     * 
+     * @param scanned
+     *            columns the scan is going to fetch, null if all
+     */
+    void apply(Scan scan, boolean[] scanned) throws IOException {
+        byte[] start = scan.getStartRow(), stop = scan.getStopRow();
+        if (Bytes.compareTo(m_startRow, start) > 0)
+            start = m_startRow;
+        if (m_stopRow.length > 0 && (stop.length == 0 || Bytes.compareTo(m_stopRow, stop) < 0))
+            stop = m_stopRow;
+        // contradicting ranges are left to the filter (an empty range can't be
+        // expressed with start/stop rows)
+        if (stop.length == 0 || Bytes.compareTo(start, stop) < 0) {
+            scan.setStartRow(start);
+            scan.setStopRow(stop);
+        }
+
+        List<Filter> filters = new ArrayList<Filter>();
+        if (scan.getFilter() != null)
+            filters.add(scan.getFilter());
+        for (byte[] prefix : m_prefixes)
+            filters.add(new PrefixFilter(prefix));
+        for (String regex : m_rowRegexes)
+            // pig's matches() is a full match, the comparator finds
+            filters.add(new RowFilter(CompareOp.EQUAL, new RegexStringComparator("^(?:" + regex + ")$")));
+        for (byte[] row : m_excludedRows)
+            filters.add(new RowFilter(CompareOp.NOT_EQUAL, new BinaryComparator(row)));
+        if (filters.size() == 1)
+            scan.setFilter(filters.get(0));
+        else if (filters.size() > 1)
+            scan.setFilter(new FilterList(FilterList.Operator.MUST_PASS_ALL, filters));
+
+        Long minTs = null;
+        for (int i = 0; i < m_minTimestamps.length; i++) {
+            if (scanned != null && !scanned[i])
+                continue;
+            Long colMinTs = m_minTimestamps[i];
+            if (colMinTs == null)
+                return; // some columns are not bounded
+            if (minTs == null || colMinTs < minTs)
+                minTs = colMinTs;
+        }
+        TimeRange tr = scan.getTimeRange();
+        if (minTs != null && minTs > tr.getMin() && minTs < tr.getMax())
+            scan.setTimeRange(minTs, tr.getMax());
+    }
+
+    private void collect(Expression expr) {
+        Expression.OpType op = expr.getOpType();
+        if (!(expr instanceof BinaryExpression))
+            return;
+        Expression lhs = ((BinaryExpression) expr).getLhs(), rhs = ((BinaryExpression) expr).getRhs();
+        if (op == Expression.OpType.OP_AND) {
+            collect(lhs);
+            collect(rhs);
+            return;
+        }
+
+        if (lhs instanceof Expression.Const && rhs instanceof Expression.Column) {
+            Expression t = lhs;
+            lhs = rhs;
+            rhs = t;
+            op = flip(op);
+        }
+        if (op == null || !(lhs instanceof Expression.Column && rhs instanceof Expression.Const))
+            return;
+        String column = ((Expression.Column) lhs).getName();
+        Object value = ((Expression.Const) rhs).getValue();
+        if (value == null)
+            return;
+
+        if (m_keyColumn.equals(column))
+            collectRow(op, value);
+        else if (value instanceof Number)
+            for (int i = 0; i < m_tsColumns.length; i++)
+                if (m_tsColumns[i].equals(column))
+                    collectTimestamp(i, op, (Number) value);
+    }
+
+    private void collectRow(Expression.OpType op, Object value) {
+        if (TuplePredicate.isMatch(op)) {
+            if (!(value instanceof String))
+                return;
+            String regex = (String) value;
+            m_rowRegexes.add(regex);
+            String prefix = literalPrefix(regex);
+            if (prefix.length() > 0) {
+                byte[] prefixBytes = Bytes.toBytes(prefix);
+                m_prefixes.add(prefixBytes);
+                raiseStart(prefixBytes);
+                byte[] prefixStop = prefixStop(prefixBytes);
+                if (prefixStop != null)
+                    lowerStop(prefixStop);
+            }
+            return;
+        }
+
+        byte[] row;
+        if (value instanceof DataByteArray)
+            row = ((DataByteArray) value).get();
+        else if (value instanceof String)
+            row = Bytes.toBytes((String) value);
+        else
+            return;
+
+        switch (op) {
+        case OP_EQ:
+            raiseStart(row);
+            lowerStop(successor(row));
+            break;
+        case OP_GE:
+            raiseStart(row);
+            break;
+        case OP_GT:
+            raiseStart(successor(row));
+            break;
+        case OP_LT:
+            lowerStop(row);
+            break;
+        case OP_LE:
+            lowerStop(successor(row));
+            break;
+        case OP_NE:
+            m_excludedRows.add(row);
+            break;
+        default:
+        }
+    }
+
+    private void collectTimestamp(int col, Expression.OpType op, Number value) {
+        long minTs;
+        boolean integral = value instanceof Long || value instanceof Integer;
+        switch (op) {
+        case OP_EQ:
+        case OP_GE:
+            minTs = integral ? value.longValue() : (long) Math.ceil(value.doubleValue());
+            break;
+        case OP_GT:
+            minTs = integral ? value.longValue() + 1 : (long) Math.floor(value.doubleValue()) + 1;
+            break;
+        default:
+            return;
+        }
+        if (m_minTimestamps[col] == null || minTs > m_minTimestamps[col])
+            m_minTimestamps[col] = minTs;
+    }
+
+    private void raiseStart(byte[] row) {
+        if (Bytes.compareTo(row, m_startRow) > 0)
+            m_startRow = row;
+    }
+
+    private void lowerStop(byte[] row) {
+        if (m_stopRow.length == 0 || Bytes.compareTo(row, m_stopRow) < 0)
+            m_stopRow = row;
+    }
+
+    private static Expression.OpType flip(Expression.OpType op) {
+        switch (op) {
+        case OP_EQ:
+        case OP_NE:
+            return op;
+        case OP_GT:
+            return Expression.OpType.OP_LT;
+        case OP_GE:
+            return Expression.OpType.OP_LE;
+        case OP_LT:
+            return Expression.OpType.OP_GT;
+        case OP_LE:
+            return Expression.OpType.OP_GE;
+        default:
+            return null;
+        }
+    }
+
+    /**
+     * @return the smallest row following the given one
+     */
+    static byte[] successor(byte[] row) {
+        byte[] succ = new byte[row.length + 1];
+        System.arraycopy(row, 0, succ, 0, row.length);
+        return succ;
+    }
+
+    /**
+     * @return the smallest row not starting with the prefix, null if there's
+     *         none (all 0xff).
+     */
+    static byte[] prefixStop(byte[] prefix) {
+        for (int i = prefix.length - 1; i >= 0; i--) {
+            if (prefix[i] != (byte) 0xff) {
+                byte[] stop = new byte[i + 1];
+                System.arraycopy(prefix, 0, stop, 0, i + 1);
+                stop[i]++;
+                return stop;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return literal prefix every match of the regex starts with, empty if
+     *         there's none or we can't tell.
+     */
+    static String literalPrefix(String regex) {
+        if (regex.indexOf('|') >= 0)
+            return "";
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < regex.length(); i++) {
+            char c = regex.charAt(i);
+            if ("\\[](){}.*+?^$".indexOf(c) >= 0) {
+                // a quantifier applies to the last literal too
+                if ((c == '*' || c == '?' || c == '{') && sb.length() > 0)
+                    sb.setLength(sb.length() - 1);
+                break;
+            }
+            sb.append(c);
+        }
+        return sb.toString();
+    }
+
+}
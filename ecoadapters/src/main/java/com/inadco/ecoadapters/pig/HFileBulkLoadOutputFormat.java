@@ -0,0 +1,207 @@
+/**
+ *
+ *  Copyright © 2010, 2011 Inadco, Inc. All rights reserved.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ *
+ */
+package com.inadco.ecoadapters.pig;
+
+import java.io.IOException;
+import java.net.URLEncoder;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hbase.HBaseConfiguration;
+import org.apache.hadoop.hbase.HColumnDescriptor;
+import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.hbase.io.ImmutableBytesWritable;
+import org.apache.hadoop.hbase.mapreduce.HFileOutputFormat;
+import org.apache.hadoop.hbase.mapreduce.LoadIncrementalHFiles;
+import org.apache.hadoop.hbase.util.Base64;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.mapreduce.JobContext;
+import org.apache.hadoop.mapreduce.OutputCommitter;
+import org.apache.hadoop.mapreduce.RecordWriter;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputCommitter;
+
+/**
+ * {@link HFileOutputFormat} for bulk loads into an existing table (see
+ * {@link HFileStorage}).
+ * <P>
+ * 
+ * Job setup ({@link #configureBulkLoad(Configuration, String, boolean)})
+ * captures region start keys and column family compression of the table in
+ * the job configuration, the same way
+ * {@link HFileOutputFormat#configureIncrementalLoad(org.apache.hadoop.mapreduce.Job, HTable)}
+ * does, but without taking over the job's partitioner and reducer, which
+ * belong to pig.
+ * <P>
+ * 
+ * Record writers start a new set of hfiles every time the (sorted) output
+ * crosses a region boundary, so that no hfile has to be split during the load.
+ * If requested, the committer runs {@link LoadIncrementalHFiles} over the
+ * output once the job is committed.
+ * 
+ * @author dmitriy
+ * 
+ */
+class HFileBulkLoadOutputFormat extends HFileOutputFormat {
+
+    static final String       TABLE_PROP              = "inadco.HFileStorage.table";
+    static final String       REGION_START_KEYS_PROP  = "inadco.HFileStorage.regionStartKeys";
+    static final String       INCREMENTAL_LOAD_PROP   = "inadco.HFileStorage.incrementalLoad";
+
+    // what HFileOutputFormat reads per family compression from
+    static final String       FAMILY_COMPRESSION_PROP = "hbase.hfileoutputformat.families.compression";
+
+    private BulkLoadCommitter m_committer;
+
+    static void configureBulkLoad(Configuration conf, String table, boolean incrementalLoad) throws IOException {
+        HTable htable = new HTable(HBaseConfiguration.create(conf), table);
+        try {
+            StringBuilder sb = new StringBuilder();
+            for (byte[] startKey : htable.getStartKeys()) {
+                if (sb.length() > 0)
+                    sb.append(',');
+                sb.append(Base64.encodeBytes(startKey));
+            }
+            conf.set(REGION_START_KEYS_PROP, sb.toString());
+
+            sb.setLength(0);
+            for (HColumnDescriptor family : htable.getTableDescriptor().getFamilies()) {
+                if (sb.length() > 0)
+                    sb.append('&');
+                sb.append(URLEncoder.encode(family.getNameAsString(), "UTF-8"));
+                sb.append('=');
+                sb.append(URLEncoder.encode(family.getCompression().getName(), "UTF-8"));
+            }
+            conf.set(FAMILY_COMPRESSION_PROP, sb.toString());
+        } finally {
+            htable.close();
+        }
+        conf.set(TABLE_PROP, table);
+        conf.setBoolean(INCREMENTAL_LOAD_PROP, incrementalLoad);
+    }
+
+    static byte[][] getRegionStartKeys(Configuration conf) {
+        String startKeysStr = conf.get(REGION_START_KEYS_PROP);
+        if (startKeysStr == null)
+            return null;
+        // the first region starts with the empty key
+        String[] encoded = startKeysStr.split(",", -1);
+        byte[][] startKeys = new byte[encoded.length][];
+        for (int i = 0; i < encoded.length; i++)
+            startKeys[i] = encoded[i].length() == 0 ? HConstants.EMPTY_BYTE_ARRAY : Base64.decode(encoded[i]);
+        return startKeys;
+    }
+
+    /**
+     * @return index of the region the row belongs to
+     */
+    static int regionOf(byte[][] startKeys, byte[] row, int offset, int length) {
+        int lo = 0, hi = startKeys.length - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (Bytes.compareTo(startKeys[mid], 0, startKeys[mid].length, row, offset, length) <= 0)
+                lo = mid;
+            else
+                hi = mid - 1;
+        }
+        return lo;
+    }
+
+    @Override
+    public RecordWriter<ImmutableBytesWritable, KeyValue> getRecordWriter(TaskAttemptContext context)
+        throws IOException, InterruptedException {
+        byte[][] startKeys = getRegionStartKeys(context.getConfiguration());
+        if (startKeys == null || startKeys.length < 2)
+            return super.getRecordWriter(context);
+        return new RegionRollingWriter(context, startKeys);
+    }
+
+    @Override
+    public synchronized OutputCommitter getOutputCommitter(TaskAttemptContext context) throws IOException {
+        if (!context.getConfiguration().getBoolean(INCREMENTAL_LOAD_PROP, false))
+            return super.getOutputCommitter(context);
+        if (m_committer == null)
+            m_committer = new BulkLoadCommitter(getOutputPath(context), context);
+        return m_committer;
+    }
+
+    private class RegionRollingWriter extends RecordWriter<ImmutableBytesWritable, KeyValue> {
+
+        private final TaskAttemptContext                         m_context;
+        private final byte[][]                                   m_startKeys;
+        private RecordWriter<ImmutableBytesWritable, KeyValue>   m_writer;
+        private int                                              m_region;
+
+        RegionRollingWriter(TaskAttemptContext context, byte[][] startKeys) {
+            super();
+            m_context = context;
+            m_startKeys = startKeys;
+        }
+
+        @Override
+        public void write(ImmutableBytesWritable row, KeyValue kv) throws IOException, InterruptedException {
+            if (m_writer == null || m_region + 1 < m_startKeys.length
+                && Bytes.compareTo(m_startKeys[m_region + 1], 0, m_startKeys[m_region + 1].length, row.get(),
+                                   row.getOffset(), row.getLength()) <= 0) {
+                // next region, next hfiles
+                if (m_writer != null)
+                    m_writer.close(m_context);
+                m_region = regionOf(m_startKeys, row.get(), row.getOffset(), row.getLength());
+                m_writer = HFileBulkLoadOutputFormat.super.getRecordWriter(m_context);
+            }
+            m_writer.write(row, kv);
+        }
+
+        @Override
+        public void close(TaskAttemptContext context) throws IOException, InterruptedException {
+            if (m_writer != null)
+                m_writer.close(context);
+        }
+    }
+
+    private static class BulkLoadCommitter extends FileOutputCommitter {
+
+        private final Path m_outputPath;
+
+        BulkLoadCommitter(Path outputPath, TaskAttemptContext context) throws IOException {
+            super(outputPath, context);
+            m_outputPath = outputPath;
+        }
+
+        @Override
+        public void commitJob(JobContext jobContext) throws IOException {
+            super.commitJob(jobContext);
+
+            Configuration conf = HBaseConfiguration.create(jobContext.getConfiguration());
+            HTable htable = new HTable(conf, conf.get(TABLE_PROP));
+            try {
+                new LoadIncrementalHFiles(conf).doBulkLoad(m_outputPath, htable);
+            } catch (IOException exc) {
+                throw exc;
+            } catch (Exception exc) {
+                throw new IOException(exc);
+            } finally {
+                htable.close();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,74 @@
+/**
+ *
+ *  Copyright © 2010, 2011 Inadco, Inc. All rights reserved.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ *
+ */
+package com.inadco.ecoadapters.pig;
+
+import java.io.IOException;
+
+import org.apache.hadoop.conf.Configurable;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.mapreduce.Partitioner;
+import org.apache.pig.impl.io.PigNullableWritable;
+
+/**
+ * Partitions pig keys by regions of the table {@link HFileStorage} bulk loads
+ * into, for use in <code>partition by</code> clause of the group feeding the
+ * store, with parallelism equal to the number of regions. Keys are converted
+ * to row keys the same way {@link HFileStorage} converts them.
+ * <P>
+ * 
+ * Region start keys come from the job configuration, the storage puts them
+ * there at job setup (so the store has to be in the same job).
+ * 
+ * @author dmitriy
+ * 
+ */
+public class HFileRegionPartitioner extends Partitioner<PigNullableWritable, Writable> implements Configurable {
+
+    private Configuration m_conf;
+    private byte[][]      m_startKeys;
+
+    @Override
+    public int getPartition(PigNullableWritable key, Writable value, int numPartitions) {
+        if (m_startKeys == null)
+            throw new IllegalStateException("Region start keys are not set up, is there HFileStorage with -table "
+                + "in the same job?");
+        Object k = key.getValueAsPigType();
+        if (k == null)
+            return 0;
+        try {
+            byte[] row = HFileStorage.getValue(k);
+            return HFileBulkLoadOutputFormat.regionOf(m_startKeys, row, 0, row.length) % numPartitions;
+        } catch (IOException exc) {
+            throw new IllegalArgumentException(exc);
+        }
+    }
+
+    @Override
+    public void setConf(Configuration conf) {
+        m_conf = conf;
+        m_startKeys = HFileBulkLoadOutputFormat.getRegionStartKeys(conf);
+    }
+
+    @Override
+    public Configuration getConf() {
+        return m_conf;
+    }
+
+}
@@ -1,29 +1,48 @@
 package com.inadco.ecoadapters.pig;
 
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Properties;
 import java.util.TreeSet;
 
 
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.GnuParser;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.hbase.KeyValue;
 import org.apache.hadoop.hbase.io.ImmutableBytesWritable;
-import org.apache.hadoop.hbase.mapreduce.HFileOutputFormat;
 import org.apache.hadoop.hbase.util.Bytes;
 
 import org.apache.hadoop.mapreduce.Job;
 import org.apache.hadoop.mapreduce.OutputFormat;
 import org.apache.hadoop.mapreduce.RecordWriter;
+import org.apache.pig.PigException;
+import org.apache.pig.ResourceSchema;
 import org.apache.pig.StoreFunc;
 import org.apache.pig.data.DataByteArray;
 import org.apache.pig.data.DataType;
 import org.apache.pig.data.Tuple;
+import org.apache.pig.impl.logicalLayer.schema.Schema;
+import org.apache.pig.impl.logicalLayer.schema.Schema.FieldSchema;
+import org.apache.pig.impl.util.UDFContext;
 import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
 
+import com.google.protobuf.Descriptors.Descriptor;
+import com.inadco.ecoadapters.pig.PigUtil.Tuple2ProtoMap;
+
 /**
  * A pig StoreFunc to store HBase hFiles
  * 
+ * Columns are specified the same way as in {@link HBaseProtobufLoader}
+ * (family:column[:protobuf-spec]). The first output attribute is the row key,
+ * the rest are the columns, in the order of the spec. Columns with protobuf
+ * spec take pig tuples and store them as serialized messages, same as
+ * {@link HBaseProtobufStorage} does, e.g.
+ * 
+ * HFileStorage('cf:a cf:rating:hdfs://nn/protolib/inadco-logs.protodesc?msg=inadco.logs.ContentRating')
+ * 
  * 3 things to keep in mind when using this
  * 
  * 1. you probably want to set 
@@ -42,28 +61,54 @@ import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
  * 
  * hbase.hregion.max.filesize
  * 
+ * Bulk load mode: pass the target table as the second argument, optionally
+ * with -load to run the incremental load (completebulkload) once the job
+ * succeeds:
+ * 
+ * HFileStorage('cf:a cf:b', '-table mytab -load')
+ * 
+ * The table's region start keys and column family compression are then
+ * picked up at job setup, and every task rolls over to a new set of hfiles
+ * whenever its output crosses a region boundary, so each hfile fits in a
+ * single region (see {@link HFileBulkLoadOutputFormat}). The output still has
+ * to be sorted by row key, either by an order by, or, to get exactly one
+ * reducer (and hfile set) per region, by grouping on the key with
+ * {@link HFileRegionPartitioner}:
+ * 
+ * B = group A by key partition by com.inadco.ecoadapters.pig.HFileRegionPartitioner parallel $numRegions;
+ * C = foreach B generate flatten(A);
+ * store C into '$out' using com.inadco.ecoadapters.pig.HFileStorage('cf:a cf:b', '-table mytab -load');
+ * 
  * @author michael
  *
  */
 @SuppressWarnings("rawtypes")
 public class HFileStorage extends StoreFunc {
 
+	private static final String SCHEMA_PROPERTY = "inadco.HFileStorage.schema";
+
 	protected RecordWriter writer = null;
-	private Map<String,Integer> familyQualToIndex;
-	private String[] qualifiers;
-	private String[] families;
+	private HBaseColSpec colSpec;
+	private byte[][] qualifiers;
+	private byte[][] families;
+	// protobuf conversions of message valued columns, null for the others
+	private PigUtil.Pig2HBaseStrategy[] convStrategies;
+	private String udfContextSignature;
+	// column positions in KeyValue order
+	private int[] sortedColumns;
+	private String table;
+	private boolean incrementalLoad;
 
-	public HFileStorage(String storageSpec) {
-		String[] storage = storageSpec.split("\\s");
+	public HFileStorage(String storageSpec) throws PigException {
+		colSpec = new HBaseColSpec(storageSpec, false);
 
-		familyQualToIndex = new HashMap<String,Integer>();
-		families = new String[storage.length];
-		qualifiers = new String[storage.length];
+		families = colSpec.m_fams;
+		qualifiers = colSpec.m_cols;
+		sortedColumns = new int[families.length];
 
 		TreeSet<KeyValue> map = new TreeSet<KeyValue>(KeyValue.COMPARATOR);
 
-		int i = 0;
-		String[] split;
+		int i;
 
 		/* 
 		 * For each row, we'll get multiple column families and qualifiers, HFileOutputFormat requires them to arrive
@@ -71,57 +116,125 @@ public class HFileStorage extends StoreFunc {
 		 * 
 		 */
 
-		for(String store : storage) {
-			split = store.split(":");
-
-			families[i] = split[0];
-			qualifiers[i] = split[1];
-
-			KeyValue kv = new KeyValue("row".getBytes(),split[0].getBytes(),split[1].getBytes(),store.getBytes());
+		for(i = 0; i < families.length; i++) {
+			// column position goes in the value
+			KeyValue kv = new KeyValue(Bytes.toBytes("row"),families[i],qualifiers[i],Bytes.toBytes(i));
 			map.add(kv);
-
-			i++;
 		}
 
 		i = 0;
 		for (KeyValue kv2 : map) {
-			familyQualToIndex.put((new String(kv2.getFamily()))+":"+(new String(kv2.getQualifier())), new Integer(i));
+			sortedColumns[i] = Bytes.toInt(kv2.getValue());
 			i++;
 		}
 
 	}
 
+	/**
+	 * @param storageSpec column spec
+	 * @param bulkLoadSpec bulk load options: -table name [-load]
+	 */
+	public HFileStorage(String storageSpec, String bulkLoadSpec) throws IOException {
+		this(storageSpec);
+		Options options = new Options();
+		options.addOption("table", true, "target table");
+		options.addOption("load", false, "run incremental load at the end");
+		CommandLine cl;
+		try {
+			cl = new GnuParser().parse(options, bulkLoadSpec.trim().split("\\s+"));
+		} catch (ParseException e) {
+			throw new IOException("Bad bulk load options '" + bulkLoadSpec + "', expected -table name [-load]", e);
+		}
+		table = cl.getOptionValue("table");
+		if (table == null)
+			throw new IOException("Bulk load requires -table");
+		incrementalLoad = cl.hasOption("load");
+	}
+
 	public OutputFormat getOutputFormat() throws IOException {
-		HFileOutputFormat outputFormat = new HFileOutputFormat();
+		HFileBulkLoadOutputFormat outputFormat = new HFileBulkLoadOutputFormat();
 		return outputFormat;
 	}
 
 	public void setStoreLocation(String location, Job job) throws IOException {
 		job.getConfiguration().set("mapred.textoutputformat.separator", "");
 		FileOutputFormat.setOutputPath(job, new Path(location));
+		if (table != null) {
+			Configuration conf = job.getConfiguration();
+			// region boundaries are captured once, at job setup on the front end
+			if (!table.equals(conf.get(HFileBulkLoadOutputFormat.TABLE_PROP)))
+				HFileBulkLoadOutputFormat.configureBulkLoad(conf, table, incrementalLoad);
+		}
 	}
 
 	public void prepareToWrite(RecordWriter writer) throws IOException {
 		this.writer = writer;
 	}
 
+	@Override
+	public void setStoreFuncUDFContextSignature(String signature) {
+		udfContextSignature = signature;
+	}
+
+	@Override
+	public void checkSchema(ResourceSchema s) throws IOException {
+		if (!hasMessageColumns())
+			return;
+		Schema pigSchema = Schema.getPigSchema(s);
+		getUDFProperties().setProperty(SCHEMA_PROPERTY, PigUtil.stringifySchema(pigSchema));
+		initConversions(pigSchema);
+	}
+
+	/*
+	 * message valued columns are converted from tuples by the schema of the column's position in the output
+	 */
+	private void initConversions(Schema pigSchema) throws IOException {
+		convStrategies = new PigUtil.Pig2HBaseStrategy[families.length];
+		for (int i = 0; i < families.length; i++) {
+			if (colSpec.m_msgDesc[i] == null)
+				continue;
+			FieldSchema fs = pigSchema.getField(i+1);
+			if (fs.type != DataType.TUPLE)
+				throw new IOException(String.format("Tuple is expected for pig output attribute %d (column %s).", i+1,
+						Bytes.toString(qualifiers[i])));
+			Tuple2ProtoMap map = PigUtil.generatePigTuple2ProtoMap(fs.schema, colSpec.m_msgDesc[i]);
+			convStrategies[i] = new PigUtil.PigTuple2HBaseConversion(map, colSpec.m_msgBuilder[i]);
+		}
+	}
+
+	private boolean hasMessageColumns() {
+		for (Descriptor msgDesc : colSpec.m_msgDesc)
+			if (msgDesc != null)
+				return true;
+		return false;
+	}
+
+	private Properties getUDFProperties() {
+		return UDFContext.getUDFContext().getUDFProperties(getClass(), new String[] { udfContextSignature });
+	}
+
 	@SuppressWarnings("unchecked")
 	public void putNext(Tuple t) throws IOException {
 		try {
-			ImmutableBytesWritable hbaseRowKey = new ImmutableBytesWritable(getValue(t.get(0)));
-			KeyValue[] arr = new KeyValue[families.length];
-
-			KeyValue kv;
-			for(int i = 0;i<qualifiers.length;i++) {
-        Object v = t.get(i+1);
-        if ( v == null ) continue;
-				kv = new KeyValue(getValue(t.get(0)),families[i].getBytes(),qualifiers[i].getBytes(),getValue(v));
-				arr[familyQualToIndex.get((new String(kv.getFamily()))+":"+(new String(kv.getQualifier()))).intValue()] = kv;
+			if (convStrategies == null && !hasMessageColumns())
+				convStrategies = new PigUtil.Pig2HBaseStrategy[families.length];
+			else if (convStrategies == null) {
+				// backend
+				String schemaStr = getUDFProperties().getProperty(SCHEMA_PROPERTY);
+				if (schemaStr == null)
+					throw new PigException("Pig schema required for input of this function, wasn't set.");
+				initConversions(PigUtil.destringifySchema(schemaStr));
 			}
 
+			byte[] rowKey = getValue(t.get(0));
+			ImmutableBytesWritable hbaseRowKey = new ImmutableBytesWritable(rowKey);
+
 			// Ordered write
-			for (KeyValue kv2 : arr) {
-				if (kv2 != null ) writer.write(hbaseRowKey, kv2);
+			for (int i : sortedColumns) {
+				Object v = t.get(i+1);
+				if ( v == null ) continue;
+				byte[] value = convStrategies[i] == null ? getValue(v) : convStrategies[i].toHbase(v);
+				writer.write(hbaseRowKey, new KeyValue(rowKey,families[i],qualifiers[i],value));
 			}
 		} catch(Exception e) {
 			e.printStackTrace();
@@ -129,7 +242,7 @@ public class HFileStorage extends StoreFunc {
 		}
 	}
 
-	private byte[] getValue(Object field) throws IOException {
+	static byte[] getValue(Object field) throws IOException {
 		byte[] value = null; 
 		switch (DataType.findType(field)) {
 		case DataType.INTEGER: {
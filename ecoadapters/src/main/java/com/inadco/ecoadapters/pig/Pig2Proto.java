@@ -1,13 +1,16 @@
 package com.inadco.ecoadapters.pig;
 
 import java.io.IOException;
+import java.util.Properties;
 
 import org.apache.pig.EvalFunc;
+import org.apache.pig.PigException;
 import org.apache.pig.data.Tuple;
 import org.apache.pig.impl.logicalLayer.schema.Schema;
+import org.apache.pig.impl.util.UDFContext;
 
-import com.google.protobuf.Message;
 import com.google.protobuf.Descriptors.Descriptor;
+import com.inadco.ecoadapters.EcoUtil;
 import com.inadco.ecoadapters.pig.PigUtil.Tuple2ProtoMap;
 
 /**
@@ -24,20 +27,22 @@ import com.inadco.ecoadapters.pig.PigUtil.Tuple2ProtoMap;
  * See {@link Proto2Pig} for usage similarities.<P>
  * 
  * Status: initial development.
- * Problems: incoming pig schema supplied only at front end. we probably can encode it 
- * but multiple invocations for the same proto message will probably be untraceable 
- * unless we use each pig <code>define</code> exactly one time.
+ * Incoming pig schema is supplied only at front end, so it is passed on to the
+ * backend thru the udf context, separately for each invocation.
  * 
  * @author dmitriy
  * 
  */
 public class Pig2Proto extends EvalFunc<byte[]> {
-    
+
+    private static final String                           SCHEMA_PROPERTY = "inadco.Pig2Proto.schema";
+
     private String                                        m_msgDescString;
     private Schema                                        m_pigSchema;
     private Descriptor                                    m_msgDesc;
-    private Message.Builder                               m_msgBuilder;
     private Tuple2ProtoMap                                m_tuple2ProtoMap;
+    private ProtoTupleWriter                              m_tupleWriter;
+    private String                                        m_udfContextSignature;
 
 
     public Pig2Proto(String msgDescString) {
@@ -45,15 +50,38 @@ public class Pig2Proto extends EvalFunc<byte[]> {
         m_msgDescString = msgDescString;
     }
 
+    @Override
+    public void setUDFContextSignature(String signature) {
+        m_udfContextSignature = signature;
+    }
+
+    @Override
+    public Schema outputSchema(Schema input) {
+        try {
+            // input schema is only known at the front end, pass it on to the
+            // backend (per invocation, thru the signature)
+            m_pigSchema = input;
+            getUDFProperties().setProperty(SCHEMA_PROPERTY, PigUtil.stringifySchema(input));
+
+            // just for the sake of validation, try to build map on front end
+            // before pushing it all to backend.
+            init();
+        } catch (RuntimeException exc) {
+            throw exc;
+        } catch (Throwable thr) {
+            throw new RuntimeException(thr);
+        }
+        return super.outputSchema(input);
+    }
+
     @Override
     public byte[] exec(Tuple input) throws IOException {
         try {
             if ( input == null ) return null;
-            
-            Message.Builder bldr = m_msgBuilder.clone();
-            PigUtil.pigTuple2ProtoMessage(input, m_tuple2ProtoMap, bldr, 0, input.size());
-            byte[] val = bldr.build().toByteArray();
-            return val;
+            if (m_tupleWriter == null)
+                init();
+
+            return m_tupleWriter.toByteArray(input, 0, input.size());
         } catch (IOException exc) {
             throw exc;
         } catch (Throwable exc) {
@@ -61,4 +89,31 @@ public class Pig2Proto extends EvalFunc<byte[]> {
         }
     }
 
+    private void init() throws PigException {
+        try {
+            if (m_pigSchema == null) {
+                // backend . try to load it back from properties.
+                String schemaStr = getUDFProperties().getProperty(SCHEMA_PROPERTY);
+                if (schemaStr == null)
+                    throw new PigException("Pig schema required for input of this function, wasn't set.");
+                m_pigSchema = PigUtil.destringifySchema(schemaStr);
+            }
+
+            if (m_msgDescString.startsWith("hdfs://"))
+                m_msgDesc = EcoUtil.inferDescriptorFromFilesystem(m_msgDescString);
+            else
+                m_msgDesc = EcoUtil.inferDescriptorFromClassName(m_msgDescString);
+            m_tuple2ProtoMap = PigUtil.generatePigTuple2ProtoMap(m_pigSchema, m_msgDesc);
+            m_tupleWriter = ProtoTupleWriter.create(m_tuple2ProtoMap);
+        } catch (PigException exc) {
+            throw exc;
+        } catch (Throwable thr) {
+            throw new PigException(thr);
+        }
+    }
+
+    private Properties getUDFProperties() {
+        return UDFContext.getUDFContext().getUDFProperties(getClass(), new String[] { m_udfContextSignature });
+    }
+
 }
@@ -24,6 +24,7 @@ import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import org.apache.commons.codec.binary.Base64;
@@ -120,6 +121,22 @@ public class PigUtil {
         return new Tuple2ProtoMap(pigSchema, protoDesc);
     }
 
+    /**
+     * compile protobuf message to pig tuple conversion for the message
+     * descriptor. This is what one wants to use for converting more than a
+     * couple of messages since it doesn't dispatch on field types for every
+     * field of every message the way {@link #protoMessage2PigTuple(Message,
+     * Descriptor, TupleFactory)} does.
+     * 
+     * @param protoDesc
+     *            message descriptor
+     * @return compiled conversion, produces tuples of the same schema as
+     *         {@link #generatePigSchemaFromProto(Descriptor)} describes.
+     */
+    static public Proto2TupleMap generateProto2TupleMap(Descriptor protoDesc) {
+        return new Proto2TupleMap(protoDesc, new HashMap<Descriptor, Proto2TupleMap>());
+    }
+
     static public Tuple protoMessage2PigTuple(Message msg, Descriptor desc, TupleFactory tf) {
 
         Tuple msgTuple = tf.newTuple();
@@ -162,18 +179,25 @@ public class PigUtil {
         if (src == null)
             return; // don't set anything
 
+        FieldDescriptor[] fields = parseMap.m_fields;
+        Tuple2ProtoMap[] tupleMaps = parseMap.m_tupleMaps;
+        boolean[] messages = parseMap.m_messages;
+        if (endAttribute - beginAttribute > fields.length)
+            endAttribute = beginAttribute + fields.length;
+
         for (int i = beginAttribute; i < endAttribute; i++) {
 
-            FieldDescriptor protoFd = parseMap.m_attrMap.get(i - beginAttribute);
+            int attr = i - beginAttribute;
+            FieldDescriptor protoFd = fields[attr];
             if (protoFd == null)
                 // may be unmapped attributes like ___ERROR___
                 continue;
             switch (src.getType(i)) {
             case DataType.BAG:
                 DataBag bag = (DataBag) src.get(i);
-                if (protoFd.getType() == FieldDescriptor.Type.MESSAGE)
+                if (messages[attr])
                     for (Tuple tuple : bag) {
-                        Tuple2ProtoMap tupleMap = parseMap.m_tupleMap.get(i - beginAttribute);
+                        Tuple2ProtoMap tupleMap = tupleMaps[attr];
                         if (tupleMap == null)
                             throw new ExecException("Unable to save incoming bag of tuples, no tuple mapping found");
                         Message.Builder tupleBuilder = DynamicMessage.newBuilder(tupleMap.m_protoDesc);
@@ -190,8 +214,8 @@ public class PigUtil {
                     }
                 break;
             case DataType.TUPLE:
-                if (protoFd.getType() == FieldDescriptor.Type.MESSAGE) {
-                    Tuple2ProtoMap tupleMap = parseMap.m_tupleMap.get(i - beginAttribute);
+                if (messages[attr]) {
+                    Tuple2ProtoMap tupleMap = tupleMaps[attr];
                     if (tupleMap == null)
                         throw new ExecException("Unabel to same incoming tuple, no tuple mapping found");
                     Message.Builder tupleBuilder = DynamicMessage.newBuilder(tupleMap.m_protoDesc);
@@ -353,7 +377,7 @@ public class PigUtil {
         return singleton.get(0);
     }
 
-    static private Object parseSimpleProtoType(FieldDescriptor fd, Object pigObject) throws ExecException {
+    static Object parseSimpleProtoType(FieldDescriptor fd, Object pigObject) throws ExecException {
         if (pigObject == null)
             return null;
 
@@ -415,26 +439,27 @@ public class PigUtil {
     static public final class Tuple2ProtoMap {
 
         // private Schema m_pigSchema;
-        private Descriptor                    m_protoDesc;
-        private Map<Integer, FieldDescriptor> m_attrMap  = new HashMap<Integer, FieldDescriptor>();
-        private Map<Integer, Tuple2ProtoMap>  m_tupleMap = new HashMap<Integer, Tuple2ProtoMap>(); // additional
-                                                                                                    // mappings
-                                                                                                    // for
-                                                                                                    // fields
-                                                                                                    // that
-                                                                                                    // happen
-                                                                                                    // to
-                                                                                                    // be
-                                                                                                    // (repeated)
-                                                                                                    // tuples.
+        private final Descriptor        m_protoDesc;
+        // per pig attribute. null field means unmapped attribute such as
+        // ___ERROR___
+        private final FieldDescriptor[] m_fields;
+        // additional mappings for attributes that happen to be (bags of)
+        // tuples
+        private final Tuple2ProtoMap[]  m_tupleMaps;
+        // whether the attribute goes into message field
+        private final boolean[]         m_messages;
 
         private Tuple2ProtoMap(Schema pigSchema, Descriptor desc) throws FrontendException {
             super();
 
             // m_pigSchema = pigSchema;
             m_protoDesc = desc;
+            int n = pigSchema.size();
+            m_fields = new FieldDescriptor[n];
+            m_tupleMaps = new Tuple2ProtoMap[n];
+            m_messages = new boolean[n];
 
-            for (int i = 0; i < pigSchema.size(); i++) {
+            for (int i = 0; i < n; i++) {
                 FieldSchema fs = pigSchema.getField(i);
                 FieldDescriptor fd = null;
                 String falias = stripPigNamespace(fs.alias);
@@ -450,7 +475,7 @@ public class PigUtil {
                         String.format("Unable to save pig tuple field '%s(%s)' into protobuf: no such protobuf field",
                                       fs.alias,
                                       fs.canonicalName));
-                m_attrMap.put(i, fd);
+                m_fields[i] = fd;
 
                 byte st = fs.type;
 
@@ -471,6 +496,7 @@ public class PigUtil {
                 switch (fd.getType()) {
                 case MESSAGE:
 
+                    m_messages[i] = true;
                     Schema containedSchema;
                     // so, with bag, the containment is always a tuple
                     if (st == DataType.BAG && fs.schema != null) {
@@ -482,7 +508,7 @@ public class PigUtil {
                         containedSchema = fs.schema;
 
                     if (st == DataType.BAG || st == DataType.TUPLE)
-                        m_tupleMap.put(i, new Tuple2ProtoMap(containedSchema, fd.getMessageType()));
+                        m_tupleMaps[i] = new Tuple2ProtoMap(containedSchema, fd.getMessageType());
                     else
                         throw new FrontendException(
                             String.format("Unable to save pig field '(%s:%s)': expected tuple or a bag of tuples.",
@@ -496,6 +522,264 @@ public class PigUtil {
             }
         }
 
+        Descriptor getProtoDesc() {
+            return m_protoDesc;
+        }
+
+        /**
+         * @return number of pig attributes mapped (including unmapped ones)
+         */
+        int size() {
+            return m_fields.length;
+        }
+
+        /**
+         * @return protobuf field of the attribute, null if not mapped.
+         */
+        FieldDescriptor getField(int attr) {
+            return m_fields[attr];
+        }
+
+        /**
+         * @return mapping of the attribute's (bag) tuples to nested messages
+         */
+        Tuple2ProtoMap getTupleMap(int attr) {
+            return m_tupleMaps[attr];
+        }
+
+        /**
+         * @return whether the attribute goes into a message field
+         */
+        boolean isMessage(int attr) {
+            return m_messages[attr];
+        }
+
+    }
+
+    /**
+     * compiled protobuf message to pig tuple conversion. Everything that
+     * {@link PigUtil#protoMessage2PigTuple(Message, Descriptor, TupleFactory)}
+     * figures out for every field of every message (repeated or not, value
+     * conversion, nested messages) is resolved here once per descriptor.
+     * <P>
+     * 
+     * Instances are immutable and thus ok to share.
+     * 
+     */
+    static public final class Proto2TupleMap {
+
+        private final Descriptor          m_protoDesc;
+        // per tuple attribute. null field means ___ERROR___ attribute.
+        private final FieldDescriptor[]   m_fields;
+        private final Proto2PigStrategy[] m_convStrategies;
+        // whether repeated values need to be wrapped into single-attribute
+        // tuples before adding them to the bag
+        private final boolean[]           m_wrapBagValues;
+
+        private Proto2TupleMap(Descriptor desc, Map<Descriptor, Proto2TupleMap> compiled) {
+            super();
+            m_protoDesc = desc;
+            // register before compiling nested types so recursive message
+            // types do not send us into infinite loop
+            compiled.put(desc, this);
+
+            List<FieldDescriptor> fds = desc.getFields();
+            int n = fds.size();
+            m_fields = new FieldDescriptor[n + 1];
+            m_convStrategies = new Proto2PigStrategy[n + 1];
+            m_wrapBagValues = new boolean[n + 1];
+
+            for (int i = 0; i < n; i++) {
+                FieldDescriptor fd = fds.get(i);
+                m_fields[i] = fd;
+                m_convStrategies[i] = createProto2PigStrategy(fd, compiled);
+                m_wrapBagValues[i] = fd.getType() != FieldDescriptor.Type.MESSAGE;
+            }
+        }
+
+        // projection
+        private Proto2TupleMap(Proto2TupleMap src, int[] attrs) {
+            super();
+            m_protoDesc = src.m_protoDesc;
+            m_fields = new FieldDescriptor[attrs.length];
+            m_convStrategies = new Proto2PigStrategy[attrs.length];
+            m_wrapBagValues = new boolean[attrs.length];
+            for (int i = 0; i < attrs.length; i++) {
+                int attr = attrs[i];
+                if (attr < 0 || attr >= src.m_fields.length)
+                    throw new IllegalArgumentException(String.format("Invalid attribute index %d in projection.",
+                                                                     attr));
+                m_fields[i] = src.m_fields[attr];
+                m_convStrategies[i] = src.m_convStrategies[attr];
+                m_wrapBagValues[i] = src.m_wrapBagValues[attr];
+            }
+        }
+
+        /**
+         * narrow the conversion down to the requested attributes only.
+         * Attributes not requested are not converted at all.
+         * 
+         * @param attrs
+         *            positions of the attributes of the tuples produced by this
+         *            map, in the order they should appear in the projected
+         *            tuples.
+         * @return projected conversion
+         */
+        public Proto2TupleMap project(int[] attrs) {
+            return new Proto2TupleMap(this, attrs);
+        }
+
+        public Descriptor getProtoDesc() {
+            return m_protoDesc;
+        }
+
+        FieldDescriptor getField(int attr) {
+            return m_fields[attr];
+        }
+
+        Proto2PigStrategy getConvStrategy(int attr) {
+            return m_convStrategies[attr];
+        }
+
+        boolean isBagValueWrapped(int attr) {
+            return m_wrapBagValues[attr];
+        }
+
+        /**
+         * @return position of the {@link PigUtil#ERROR_ATTR} attribute in the
+         *         produced tuples, or -1 if it was projected out.
+         */
+        public int getErrorAttr() {
+            for (int i = 0; i < m_fields.length; i++)
+                if (m_fields[i] == null)
+                    return i;
+            return -1;
+        }
+
+        /**
+         * @return number of attributes in the tuples produced
+         */
+        public int size() {
+            return m_fields.length;
+        }
+
+        public Tuple toPigTuple(Message msg, TupleFactory tf) throws ExecException {
+            int n = m_fields.length;
+            Tuple msgTuple = tf.newTuple(n);
+            for (int i = 0; i < n; i++) {
+                FieldDescriptor fd = m_fields[i];
+                if (fd == null)
+                    continue; // no error
+                if (fd.isRepeated()) {
+                    DataBag db = new DefaultDataBag();
+                    Proto2PigStrategy conv = m_convStrategies[i];
+                    int cnt = msg.getRepeatedFieldCount(fd);
+                    if (m_wrapBagValues[i])
+                        for (int j = 0; j < cnt; j++)
+                            db.add(tf.newTuple(conv.toPig(msg.getRepeatedField(fd, j), tf)));
+                    else
+                        for (int j = 0; j < cnt; j++)
+                            db.add((Tuple) conv.toPig(msg.getRepeatedField(fd, j), tf));
+                    msgTuple.set(i, db);
+                } else if (msg.hasField(fd))
+                    msgTuple.set(i, m_convStrategies[i].toPig(msg.getField(fd), tf));
+            }
+            return msgTuple;
+        }
+
+    }
+
+    private static Proto2PigStrategy createProto2PigStrategy(FieldDescriptor fd,
+                                                             Map<Descriptor, Proto2TupleMap> compiled) {
+        switch (fd.getType()) {
+        case MESSAGE:
+            Proto2TupleMap nested = compiled.get(fd.getMessageType());
+            if (nested == null)
+                nested = new Proto2TupleMap(fd.getMessageType(), compiled);
+            return new ProtoMessage2PigConversion(nested);
+        case BYTES:
+            return new ProtoBytes2PigConversion();
+        case BOOL:
+            return new ProtoBool2PigConversion();
+        case ENUM:
+            return new ProtoEnum2PigConversion();
+        case DOUBLE:
+        case SINT32:
+        case SFIXED32:
+        case UINT32:
+        case INT32:
+        case FIXED32:
+        case SINT64:
+        case SFIXED64:
+        case INT64:
+        case UINT64:
+        case FIXED64:
+        case FLOAT:
+        case STRING:
+            return new ProtoPassThru2PigConversion();
+        case GROUP:
+        default:
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    // /////////////////
+    // protobuf values conversion strategies for compiled proto2pig maps.
+    public static interface Proto2PigStrategy {
+        Object toPig(Object protoVal, TupleFactory tf) throws ExecException;
+    }
+
+    public static class ProtoPassThru2PigConversion implements Proto2PigStrategy {
+
+        @Override
+        public Object toPig(Object protoVal, TupleFactory tf) {
+            return protoVal;
+        }
+    }
+
+    public static class ProtoBool2PigConversion implements Proto2PigStrategy {
+
+        @Override
+        public Object toPig(Object protoVal, TupleFactory tf) {
+            // -- see note in schema gen: we translate
+            // protobuf booleans into pig's integers.
+            return (Boolean) protoVal ? 1 : 0;
+        }
+    }
+
+    public static class ProtoBytes2PigConversion implements Proto2PigStrategy {
+
+        @Override
+        public Object toPig(Object protoVal, TupleFactory tf) {
+            return new DataByteArray(((ByteString) protoVal).toByteArray());
+        }
+    }
+
+    public static class ProtoEnum2PigConversion implements Proto2PigStrategy {
+
+        @Override
+        public Object toPig(Object protoVal, TupleFactory tf) {
+            return ((EnumValueDescriptor) protoVal).getName();
+        }
+    }
+
+    static final class ProtoMessage2PigConversion implements Proto2PigStrategy {
+
+        private final Proto2TupleMap m_tupleMap;
+
+        ProtoMessage2PigConversion(Proto2TupleMap tupleMap) {
+            super();
+            m_tupleMap = tupleMap;
+        }
+
+        Proto2TupleMap getTupleMap() {
+            return m_tupleMap;
+        }
+
+        @Override
+        public Object toPig(Object protoVal, TupleFactory tf) throws ExecException {
+            return m_tupleMap.toPigTuple((Message) protoVal, tf);
+        }
     }
 
     // /////////////////
@@ -541,13 +825,16 @@ public class PigUtil {
 
     public static class PigTuple2HBaseConversion implements Pig2HBaseStrategy {
 
-        private Tuple2ProtoMap  m_protoMap;
-        private Message.Builder m_builder;
+        private ProtoTupleWriter m_tupleWriter;
 
+        /**
+         * @param builder
+         *            not used anymore, messages are encoded by
+         *            {@link ProtoTupleWriter}.
+         */
         public PigTuple2HBaseConversion(Tuple2ProtoMap protomap, Message.Builder builder) {
             super();
-            m_protoMap = protomap;
-            m_builder = builder;
+            m_tupleWriter = ProtoTupleWriter.create(protomap);
         }
 
         @Override
@@ -555,9 +842,7 @@ public class PigUtil {
             Tuple t = (Tuple) pigVal;
             if (t == null)
                 return null;
-            Message.Builder b;
-            PigUtil.pigTuple2ProtoMessage(t, m_protoMap, b = m_builder.clone(), 0, t.size());
-            return b.build().toByteArray();
+            return m_tupleWriter.toByteArray(t, 0, t.size());
         }
 
     }
@@ -33,8 +33,6 @@ import org.apache.pig.impl.logicalLayer.schema.Schema;
 import org.apache.pig.impl.logicalLayer.schema.Schema.FieldSchema;
 
 import com.google.protobuf.Descriptors.Descriptor;
-import com.google.protobuf.DynamicMessage;
-import com.google.protobuf.Message;
 import com.inadco.ecoadapters.EcoUtil;
 
 /**
@@ -66,9 +64,10 @@ public class Proto2Pig extends EvalFunc<Tuple> {
     private static final Log         LOG = LogFactory.getLog(Proto2Pig.class);
 
     protected Descriptor             msgDesc;
-    protected DynamicMessage.Builder msgBuilder;
     protected Schema                 pigSchema;
     protected TupleFactory           tupleFactory;
+    protected PigUtil.Proto2TupleMap tupleMap;
+    protected ProtoTupleReader       tupleReader;
 
     public Proto2Pig(String msgDescString) {
         super();
@@ -77,9 +76,10 @@ public class Proto2Pig extends EvalFunc<Tuple> {
                 msgDesc = EcoUtil.inferDescriptorFromFilesystem(msgDescString);
             else
                 msgDesc = EcoUtil.inferDescriptorFromClassName(msgDescString);
-            msgBuilder = DynamicMessage.newBuilder(msgDesc);
             pigSchema = PigUtil.generatePigSchemaFromProto(msgDesc);
+            tupleMap = PigUtil.generateProto2TupleMap(msgDesc);
             tupleFactory = TupleFactory.getInstance();
+            tupleReader = ProtoTupleReader.create(tupleMap, tupleFactory);
 
             if (LOG.isDebugEnabled())
                 LOG.debug(String.format("Loaded LoadFunc for message class:%s", msgDescString));
@@ -98,8 +98,7 @@ public class Proto2Pig extends EvalFunc<Tuple> {
             return null;
         DataByteArray serMsg = (DataByteArray) tuple.get(0);
         if (serMsg == null ) return null;
-        Message msg = msgBuilder.clone().mergeFrom(serMsg.get(), 0, serMsg.size()).buildPartial();
-        return PigUtil.protoMessage2PigTuple(msg, msgDesc, tupleFactory);
+        return tupleReader.read(serMsg.get(), 0, serMsg.size());
     }
 
     @Override
@@ -0,0 +1,275 @@
+/**
+ *
+ *  Copyright © 2010, 2011 Inadco, Inc. All rights reserved.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ *
+ */
+package com.inadco.ecoadapters.pig;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.pig.backend.executionengine.ExecException;
+import org.apache.pig.data.DataBag;
+import org.apache.pig.data.DataByteArray;
+import org.apache.pig.data.DefaultDataBag;
+import org.apache.pig.data.Tuple;
+import org.apache.pig.data.TupleFactory;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.Descriptors.FieldDescriptor;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.UninitializedMessageException;
+import com.inadco.ecoadapters.ProtoWireReader;
+import com.inadco.ecoadapters.pig.PigUtil.Proto2PigStrategy;
+import com.inadco.ecoadapters.pig.PigUtil.ProtoMessage2PigConversion;
+import com.inadco.ecoadapters.pig.PigUtil.Proto2TupleMap;
+
+/**
+ * Decodes serialized protobuf messages straight into pig tuples (see
+ * {@link ProtoWireReader}). Produces the same tuples as the
+ * {@link Proto2TupleMap} it is created from would produce for the parsed
+ * message, including the projection, if any. Fields projected out are skipped
+ * on the wire.
+ *
+ */
+public final class ProtoTupleReader extends ProtoWireReader<Tuple> {
+
+    private final TupleFactory        m_tupleFactory;
+    private final int                 m_size;
+    private final int[]               m_bagAttrs;
+
+    // the rest is per slot
+    private final int[]               m_attrs;
+    private final Proto2PigStrategy[] m_convStrategies;
+    private final boolean[]           m_wrapBagValues;
+    private final boolean[]           m_bytes;
+    private final ProtoTupleReader[]  m_nested;
+    // mapped required and message slots, for checkRequired()
+    private final int[]               m_requiredSlots;
+    private final int[]               m_messageSlots;
+
+    public static ProtoTupleReader create(Proto2TupleMap tupleMap, TupleFactory tf) {
+        return new ProtoTupleReader(tupleMap, tf, null, new HashMap<Proto2TupleMap, ProtoTupleReader>());
+    }
+
+    /**
+     * reader of tuples of the same shape as {@link #create(Proto2TupleMap, TupleFactory)}
+     * would produce, that decodes only some of their attributes and skips
+     * the rest on the wire. Several such readers can fill in one tuple in
+     * turns (see {@link #mergeFrom(byte[], int, int, Object)}), e.g. the
+     * attributes a filter needs first and the others only if the filter
+     * passes.
+     * 
+     * @param attrs
+     *            per top level attribute, whether to decode it
+     */
+    public static ProtoTupleReader create(Proto2TupleMap tupleMap, TupleFactory tf, boolean[] attrs) {
+        if (attrs.length != tupleMap.size())
+            throw new IllegalArgumentException(String.format("Expected %d attribute flags, got %d.",
+                                                             tupleMap.size(), attrs.length));
+        return new ProtoTupleReader(tupleMap, tf, attrs, new HashMap<Proto2TupleMap, ProtoTupleReader>());
+    }
+
+    private ProtoTupleReader(Proto2TupleMap tupleMap,
+                             TupleFactory tf,
+                             boolean[] attrs,
+                             Map<Proto2TupleMap, ProtoTupleReader> compiled) {
+        super(tupleMap.getProtoDesc(), wantedSlots(tupleMap, attrs));
+        // register before compiling nested readers to break recursion. A
+        // reader of some attributes only can't stand in for recursive types.
+        if (attrs == null)
+            compiled.put(tupleMap, this);
+
+        m_tupleFactory = tf;
+        m_size = tupleMap.size();
+
+        int n = m_fields.length;
+        m_attrs = new int[n];
+        m_convStrategies = new Proto2PigStrategy[n];
+        m_wrapBagValues = new boolean[n];
+        m_bytes = new boolean[n];
+        m_nested = new ProtoTupleReader[n];
+        for (int i = 0; i < n; i++)
+            m_attrs[i] = -1;
+
+        int bagCnt = 0;
+        for (int attr = 0; attr < m_size; attr++) {
+            FieldDescriptor fd = tupleMap.getField(attr);
+            if (fd == null || attrs != null && !attrs[attr])
+                continue;
+            int slot = fd.getIndex();
+            m_attrs[slot] = attr;
+            m_convStrategies[slot] = tupleMap.getConvStrategy(attr);
+            m_wrapBagValues[slot] = tupleMap.isBagValueWrapped(attr);
+            m_bytes[slot] = fd.getType() == FieldDescriptor.Type.BYTES;
+            if (fd.getType() == FieldDescriptor.Type.MESSAGE) {
+                Proto2TupleMap nestedMap = ((ProtoMessage2PigConversion) m_convStrategies[slot]).getTupleMap();
+                ProtoTupleReader nested = compiled.get(nestedMap);
+                m_nested[slot] = nested != null ? nested : new ProtoTupleReader(nestedMap, tf, null, compiled);
+            }
+        }
+
+        // new tuples get their bags whether or not this reader fills them
+        for (int attr = 0; attr < m_size; attr++) {
+            FieldDescriptor fd = tupleMap.getField(attr);
+            if (fd != null && fd.isRepeated())
+                bagCnt++;
+        }
+
+        m_bagAttrs = new int[bagCnt];
+        bagCnt = 0;
+        for (int attr = 0; attr < m_size; attr++) {
+            FieldDescriptor fd = tupleMap.getField(attr);
+            if (fd != null && fd.isRepeated())
+                m_bagAttrs[bagCnt++] = attr;
+        }
+
+        int requiredCnt = 0, messageCnt = 0;
+        for (int i = 0; i < n; i++) {
+            if (m_attrs[i] >= 0 && m_fields[i].isRequired())
+                requiredCnt++;
+            if (m_nested[i] != null)
+                messageCnt++;
+        }
+        m_requiredSlots = new int[requiredCnt];
+        m_messageSlots = new int[messageCnt];
+        requiredCnt = messageCnt = 0;
+        for (int i = 0; i < n; i++) {
+            if (m_attrs[i] >= 0 && m_fields[i].isRequired())
+                m_requiredSlots[requiredCnt++] = i;
+            if (m_nested[i] != null)
+                m_messageSlots[messageCnt++] = i;
+        }
+    }
+
+    /**
+     * @return new empty tuple of the shape this reader produces (all nulls
+     *         except for empty bags of repeated fields).
+     */
+    public Tuple newTuple() throws ExecException {
+        Tuple tuple = m_tupleFactory.newTuple(m_size);
+        for (int attr : m_bagAttrs)
+            tuple.set(attr, new DefaultDataBag());
+        return tuple;
+    }
+
+    public Tuple read(byte[] buf, int offset, int length) throws IOException {
+        Tuple tuple = newTuple();
+        mergeFrom(buf, offset, length, tuple);
+        return tuple;
+    }
+
+    public Tuple read(CodedInputStream input) throws IOException {
+        Tuple tuple = newTuple();
+        mergeFrom(input, tuple);
+        return tuple;
+    }
+
+    /**
+     * check that required fields of a tuple read by this reader (and of its
+     * nested message tuples) are there, as {@link com.google.protobuf.Message.Builder#build()}
+     * would. Only fields the reader decodes can be checked.
+     * 
+     * @throws InvalidProtocolBufferException
+     *             listing the missing fields
+     */
+    public void checkRequired(Tuple tuple) throws IOException {
+        if (isInitialized(tuple))
+            return;
+        List<String> missing = new ArrayList<String>();
+        findMissing(tuple, "", missing);
+        throw new UninitializedMessageException(missing).asInvalidProtocolBufferException();
+    }
+
+    private boolean isInitialized(Tuple tuple) throws ExecException {
+        for (int slot : m_requiredSlots)
+            if (tuple.get(m_attrs[slot]) == null)
+                return false;
+        for (int slot : m_messageSlots) {
+            Object val = tuple.get(m_attrs[slot]);
+            if (val == null)
+                continue;
+            if (m_fields[slot].isRepeated()) {
+                for (Tuple nestedTuple : (DataBag) val)
+                    if (!m_nested[slot].isInitialized(nestedTuple))
+                        return false;
+            } else if (!m_nested[slot].isInitialized((Tuple) val))
+                return false;
+        }
+        return true;
+    }
+
+    private void findMissing(Tuple tuple, String prefix, List<String> missing) throws ExecException {
+        for (int slot : m_requiredSlots)
+            if (tuple.get(m_attrs[slot]) == null)
+                missing.add(prefix + m_fields[slot].getName());
+        for (int slot : m_messageSlots) {
+            Object val = tuple.get(m_attrs[slot]);
+            if (val == null)
+                continue;
+            String name = prefix + m_fields[slot].getName();
+            if (m_fields[slot].isRepeated()) {
+                int i = 0;
+                for (Tuple nestedTuple : (DataBag) val)
+                    m_nested[slot].findMissing(nestedTuple, name + "[" + i++ + "].", missing);
+            } else
+                m_nested[slot].findMissing((Tuple) val, name + ".", missing);
+        }
+    }
+
+    @Override
+    protected Object readValue(int slot, CodedInputStream input, Tuple record) throws IOException {
+        ProtoTupleReader nested = m_nested[slot];
+        if (nested != null) {
+            Tuple nestedTuple = null;
+            // non-repeated message occurring more than once is merged
+            if (!m_fields[slot].isRepeated())
+                nestedTuple = (Tuple) record.get(m_attrs[slot]);
+            if (nestedTuple == null)
+                nestedTuple = nested.newTuple();
+            return readMessage(input, nested, nestedTuple);
+        }
+        if (m_bytes[slot])
+            return new DataByteArray(readByteArray(input));
+        Object protoVal = readPrimitive(input, m_fields[slot]);
+        return protoVal == null ? null : m_convStrategies[slot].toPig(protoVal, m_tupleFactory);
+    }
+
+    @Override
+    protected void setField(Tuple record, int slot, Object value) throws IOException {
+        record.set(m_attrs[slot], value);
+    }
+
+    @Override
+    protected void addRepeatedField(Tuple record, int slot, Object value) throws IOException {
+        DataBag bag = (DataBag) record.get(m_attrs[slot]);
+        bag.add(m_wrapBagValues[slot] ? m_tupleFactory.newTuple(value) : (Tuple) value);
+    }
+
+    private static boolean[] wantedSlots(Proto2TupleMap tupleMap, boolean[] attrs) {
+        boolean[] wanted = new boolean[tupleMap.getProtoDesc().getFields().size()];
+        for (int attr = 0; attr < tupleMap.size(); attr++) {
+            FieldDescriptor fd = tupleMap.getField(attr);
+            if (fd != null && (attrs == null || attrs[attr]))
+                wanted[fd.getIndex()] = true;
+        }
+        return wanted;
+    }
+
+}
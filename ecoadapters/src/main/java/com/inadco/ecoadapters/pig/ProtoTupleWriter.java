@@ -0,0 +1,433 @@
+/**
+ *
+ *  Copyright © 2010, 2011 Inadco, Inc. All rights reserved.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ *
+ */
+package com.inadco.ecoadapters.pig;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.apache.pig.backend.executionengine.ExecException;
+import org.apache.pig.data.DataBag;
+import org.apache.pig.data.DataType;
+import org.apache.pig.data.Tuple;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.Descriptors.Descriptor;
+import com.google.protobuf.Descriptors.EnumValueDescriptor;
+import com.google.protobuf.Descriptors.FieldDescriptor;
+import com.google.protobuf.WireFormat;
+import com.inadco.ecoadapters.pig.PigUtil.Tuple2ProtoMap;
+
+/**
+ * Encodes pig tuples straight into protobuf wire format, the inverse of
+ * {@link ProtoTupleReader}. Produces the same bytes as building a
+ * DynamicMessage with
+ * {@link PigUtil#pigTuple2ProtoMessage(Tuple, Tuple2ProtoMap, com.google.protobuf.Message.Builder, int, int)}
+ * and serializing it would (fields in field number order, packed encoding of
+ * packed repeated fields, same value conversions and required field checks),
+ * without the intermediate messages.
+ * <P>
+ * 
+ * Encoding takes two passes, like protobuf's own serialization: the first one
+ * converts values and computes sizes of all the (nested) messages, the second
+ * one writes them out. The first pass is kept in a reusable plan, so instances
+ * are <b>not</b> thread safe.
+ * 
+ * @author dmitriy
+ * 
+ */
+public final class ProtoTupleWriter {
+
+    private static final int          OP_VALUE        = 0;
+    private static final int          OP_PACKED_VALUE = 1;
+    private static final int          OP_MESSAGE      = 2;
+    private static final int          OP_PACKED       = 3;
+
+    private final Descriptor          m_msgDesc;
+    // mapped fields in field number order
+    private final int[]               m_attrs;
+    private final FieldDescriptor[]   m_fields;
+    private final ProtoTupleWriter[]  m_nested;
+    private final boolean[]           m_messages;
+    private final boolean[]           m_repeated;
+    private final boolean[]           m_packed;
+    private final int[]               m_wireTypes;
+    private final int[]               m_tagSizes;
+    private final FieldDescriptor[]   m_required;
+    // required fields set so far, by field index
+    private final boolean[]           m_set;
+
+    private final Plan                m_plan;
+
+    public static ProtoTupleWriter create(Tuple2ProtoMap tupleMap) {
+        return new ProtoTupleWriter(tupleMap, new Plan());
+    }
+
+    private ProtoTupleWriter(final Tuple2ProtoMap tupleMap, Plan plan) {
+        super();
+        m_msgDesc = tupleMap.getProtoDesc();
+        m_plan = plan;
+
+        List<Integer> attrs = new ArrayList<Integer>();
+        for (int attr = 0; attr < tupleMap.size(); attr++)
+            if (tupleMap.getField(attr) != null)
+                attrs.add(attr);
+        // serialized messages have fields in number order. Stable, so
+        // attributes mapped to the same repeated field keep their order.
+        Collections.sort(attrs, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a1, Integer a2) {
+                return tupleMap.getField(a1).getNumber() - tupleMap.getField(a2).getNumber();
+            }
+        });
+
+        int n = attrs.size();
+        m_attrs = new int[n];
+        m_fields = new FieldDescriptor[n];
+        m_nested = new ProtoTupleWriter[n];
+        m_messages = new boolean[n];
+        m_repeated = new boolean[n];
+        m_packed = new boolean[n];
+        m_wireTypes = new int[n];
+        m_tagSizes = new int[n];
+        for (int e = 0; e < n; e++) {
+            int attr = attrs.get(e);
+            FieldDescriptor fd = tupleMap.getField(attr);
+            m_attrs[e] = attr;
+            m_fields[e] = fd;
+            m_messages[e] = tupleMap.isMessage(attr);
+            m_repeated[e] = fd.isRepeated();
+            m_packed[e] = fd.isPacked();
+            m_wireTypes[e] = fd.getLiteType().getWireType();
+            m_tagSizes[e] = CodedOutputStream.computeTagSize(fd.getNumber());
+            Tuple2ProtoMap nestedMap = tupleMap.getTupleMap(attr);
+            if (nestedMap != null)
+                m_nested[e] = new ProtoTupleWriter(nestedMap, plan);
+        }
+
+        List<FieldDescriptor> required = new ArrayList<FieldDescriptor>();
+        for (FieldDescriptor fd : m_msgDesc.getFields())
+            if (fd.isRequired())
+                required.add(fd);
+        m_required = required.toArray(new FieldDescriptor[required.size()]);
+        m_set = new boolean[m_msgDesc.getFields().size()];
+    }
+
+    public Descriptor getMsgDesc() {
+        return m_msgDesc;
+    }
+
+    /**
+     * first pass: convert attributes [begin, end) of the tuple and compute the
+     * size of the message. {@link #write(CodedOutputStream)} writes it out.
+     */
+    public int prepare(Tuple src, int begin, int end) throws IOException {
+        m_plan.clear();
+        return plan(src, begin, end);
+    }
+
+    /**
+     * second pass: write out the message last {@link #prepare(Tuple, int, int)}
+     * was called for.
+     */
+    public void write(CodedOutputStream output) throws IOException {
+        Plan p = m_plan;
+        for (int op = 0; op < p.m_count; op++) {
+            FieldDescriptor fd = p.m_writers[op].m_fields[p.m_entries[op]];
+            switch (p.m_kinds[op]) {
+            case OP_MESSAGE:
+            case OP_PACKED:
+                output.writeTag(fd.getNumber(), WireFormat.WIRETYPE_LENGTH_DELIMITED);
+                output.writeRawVarint32(p.m_sizes[op]);
+                break;
+            case OP_VALUE:
+                output.writeTag(fd.getNumber(), p.m_writers[op].m_wireTypes[p.m_entries[op]]);
+                writeValueNoTag(output, fd, p.m_values[op]);
+                break;
+            default:
+                writeValueNoTag(output, fd, p.m_values[op]);
+            }
+        }
+    }
+
+    /**
+     * second pass into a caller's buffer.
+     * 
+     * @param size
+     *            size returned by the last {@link #prepare(Tuple, int, int)}
+     */
+    public void write(byte[] buf, int offset, int size) throws IOException {
+        CodedOutputStream output = CodedOutputStream.newInstance(buf, offset, size);
+        write(output);
+        output.checkNoSpaceLeft();
+    }
+
+    public byte[] toByteArray(Tuple src, int begin, int end) throws IOException {
+        byte[] buf = new byte[prepare(src, begin, end)];
+        write(buf, 0, buf.length);
+        return buf;
+    }
+
+    private int plan(Tuple src, int begin, int end) throws IOException {
+        int size = 0;
+        Arrays.fill(m_set, false);
+        for (int e = 0; e < m_attrs.length; e++) {
+            int i = begin + m_attrs[e];
+            if (i >= end)
+                continue;
+            FieldDescriptor fd = m_fields[e];
+            Object pigValue = src.get(i);
+            if (pigValue == null)
+                continue;
+
+            switch (DataType.findType(pigValue)) {
+            case DataType.BAG:
+                if (!m_repeated[e])
+                    throw new ExecException(String.format("Unable to save bag into non-repeated field %s.",
+                                                          fd.getFullName()));
+                DataBag bag = (DataBag) pigValue;
+                if (m_messages[e]) {
+                    if (m_nested[e] == null)
+                        throw new ExecException("Unable to save incoming bag of tuples, no tuple mapping found");
+                    for (Tuple tuple : bag) {
+                        if (tuple == null)
+                            throw new ExecException("null tuple in a bag of messages");
+                        size += planMessage(e, tuple);
+                    }
+                } else if (m_packed[e]) {
+                    if (bag.size() == 0)
+                        break;
+                    int packedOp = m_plan.add(this, e, OP_PACKED, null);
+                    int dataSize = 0;
+                    for (Tuple tuple : bag)
+                        dataSize += planValue(e, OP_PACKED_VALUE, bagValue(fd, tuple));
+                    m_plan.m_sizes[packedOp] = dataSize;
+                    size += m_tagSizes[e] + CodedOutputStream.computeRawVarint32Size(dataSize) + dataSize;
+                } else
+                    for (Tuple tuple : bag)
+                        size += m_tagSizes[e] + planValue(e, OP_VALUE, bagValue(fd, tuple));
+                break;
+
+            case DataType.TUPLE:
+                if (m_messages[e]) {
+                    if (m_nested[e] == null)
+                        throw new ExecException("Unable to save incoming tuple, no tuple mapping found");
+                    size += planMessage(e, (Tuple) pigValue);
+                } else {
+                    // try to treat as tuple with one attr
+                    Tuple singleton = (Tuple) pigValue;
+                    if (singleton.size() != 1)
+                        throw new ExecException("tuple with one attribute expected");
+                    Object protoValue = toProto(fd, singleton.get(0));
+                    if (protoValue != null)
+                        size += m_tagSizes[e] + planValue(e, OP_VALUE, protoValue);
+                }
+                break;
+
+            default:
+                // otherwise assume simple value
+                Object protoValue = toProto(fd, pigValue);
+                if (protoValue != null)
+                    size += m_tagSizes[e] + planValue(e, OP_VALUE, protoValue);
+            }
+        }
+
+        for (FieldDescriptor fd : m_required)
+            if (!m_set[fd.getIndex()])
+                throw new ExecException(String.format("Required field %s is not set.", fd.getFullName()));
+        return size;
+    }
+
+    private int planMessage(int e, Tuple tuple) throws IOException {
+        int op = m_plan.add(this, e, OP_MESSAGE, null);
+        int msgSize = m_nested[e].plan(tuple, 0, tuple.size());
+        m_plan.m_sizes[op] = msgSize;
+        m_set[m_fields[e].getIndex()] = true;
+        return m_tagSizes[e] + CodedOutputStream.computeRawVarint32Size(msgSize) + msgSize;
+    }
+
+    /**
+     * @return size of the value without tag
+     */
+    private int planValue(int e, int kind, Object protoValue) {
+        m_plan.add(this, e, kind, protoValue);
+        m_set[m_fields[e].getIndex()] = true;
+        return valueSizeNoTag(m_fields[e], protoValue);
+    }
+
+    private static Object bagValue(FieldDescriptor fd, Tuple tuple) throws ExecException {
+        if (tuple == null || tuple.size() != 1)
+            throw new ExecException(
+                "Bag of a simple type expected, but incoming bag tuple does not have exactly 1 argument.");
+        Object protoValue = toProto(fd, tuple.get(0));
+        if (protoValue == null)
+            throw new ExecException(String.format("Unable to add null to repeated field %s.", fd.getFullName()));
+        return protoValue;
+    }
+
+    /**
+     * pig value to what {@link #writeValueNoTag(CodedOutputStream, FieldDescriptor, Object)} takes. Strings are
+     * encoded here so they are encoded only once.
+     */
+    private static Object toProto(FieldDescriptor fd, Object pigValue) throws ExecException {
+        if (pigValue == null)
+            return null;
+        switch (fd.getType()) {
+        case STRING:
+            return ByteString.copyFromUtf8(DataType.toString(pigValue));
+        case MESSAGE:
+        case GROUP:
+            throw new ExecException("Unsupported proto data type in the protodesc.");
+        default:
+            return PigUtil.parseSimpleProtoType(fd, pigValue);
+        }
+    }
+
+    private static int valueSizeNoTag(FieldDescriptor fd, Object value) {
+        switch (fd.getType()) {
+        case DOUBLE:
+            return CodedOutputStream.computeDoubleSizeNoTag((Double) value);
+        case FLOAT:
+            return CodedOutputStream.computeFloatSizeNoTag((Float) value);
+        case INT64:
+            return CodedOutputStream.computeInt64SizeNoTag((Long) value);
+        case UINT64:
+            return CodedOutputStream.computeUInt64SizeNoTag((Long) value);
+        case INT32:
+            return CodedOutputStream.computeInt32SizeNoTag((Integer) value);
+        case FIXED64:
+            return CodedOutputStream.computeFixed64SizeNoTag((Long) value);
+        case FIXED32:
+            return CodedOutputStream.computeFixed32SizeNoTag((Integer) value);
+        case BOOL:
+            return CodedOutputStream.computeBoolSizeNoTag((Boolean) value);
+        case STRING:
+        case BYTES:
+            return CodedOutputStream.computeBytesSizeNoTag((ByteString) value);
+        case UINT32:
+            return CodedOutputStream.computeUInt32SizeNoTag((Integer) value);
+        case SFIXED32:
+            return CodedOutputStream.computeSFixed32SizeNoTag((Integer) value);
+        case SFIXED64:
+            return CodedOutputStream.computeSFixed64SizeNoTag((Long) value);
+        case SINT32:
+            return CodedOutputStream.computeSInt32SizeNoTag((Integer) value);
+        case SINT64:
+            return CodedOutputStream.computeSInt64SizeNoTag((Long) value);
+        case ENUM:
+            return CodedOutputStream.computeEnumSizeNoTag(((EnumValueDescriptor) value).getNumber());
+        default:
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    private static void writeValueNoTag(CodedOutputStream output, FieldDescriptor fd, Object value)
+        throws IOException {
+        switch (fd.getType()) {
+        case DOUBLE:
+            output.writeDoubleNoTag((Double) value);
+            break;
+        case FLOAT:
+            output.writeFloatNoTag((Float) value);
+            break;
+        case INT64:
+            output.writeInt64NoTag((Long) value);
+            break;
+        case UINT64:
+            output.writeUInt64NoTag((Long) value);
+            break;
+        case INT32:
+            output.writeInt32NoTag((Integer) value);
+            break;
+        case FIXED64:
+            output.writeFixed64NoTag((Long) value);
+            break;
+        case FIXED32:
+            output.writeFixed32NoTag((Integer) value);
+            break;
+        case BOOL:
+            output.writeBoolNoTag((Boolean) value);
+            break;
+        case STRING:
+        case BYTES:
+            output.writeBytesNoTag((ByteString) value);
+            break;
+        case UINT32:
+            output.writeUInt32NoTag((Integer) value);
+            break;
+        case SFIXED32:
+            output.writeSFixed32NoTag((Integer) value);
+            break;
+        case SFIXED64:
+            output.writeSFixed64NoTag((Long) value);
+            break;
+        case SINT32:
+            output.writeSInt32NoTag((Integer) value);
+            break;
+        case SINT64:
+            output.writeSInt64NoTag((Long) value);
+            break;
+        case ENUM:
+            output.writeEnumNoTag(((EnumValueDescriptor) value).getNumber());
+            break;
+        default:
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * result of the first pass, shared by the writer and its nested writers:
+     * flat list of things to write, in order.
+     */
+    private static final class Plan {
+
+        private ProtoTupleWriter[] m_writers = new ProtoTupleWriter[64];
+        private int[]              m_entries = new int[64];
+        private int[]              m_kinds   = new int[64];
+        private int[]              m_sizes   = new int[64];
+        private Object[]           m_values  = new Object[64];
+        private int                m_count;
+
+        void clear() {
+            Arrays.fill(m_values, 0, m_count, null);
+            m_count = 0;
+        }
+
+        int add(ProtoTupleWriter writer, int entry, int kind, Object value) {
+            if (m_count == m_kinds.length) {
+                int n = m_count * 2;
+                m_writers = Arrays.copyOf(m_writers, n);
+                m_entries = Arrays.copyOf(m_entries, n);
+                m_kinds = Arrays.copyOf(m_kinds, n);
+                m_sizes = Arrays.copyOf(m_sizes, n);
+                m_values = Arrays.copyOf(m_values, n);
+            }
+            m_writers[m_count] = writer;
+            m_entries[m_count] = entry;
+            m_kinds[m_count] = kind;
+            m_values[m_count] = value;
+            return m_count++;
+        }
+    }
+
+}
@@ -0,0 +1,225 @@
+/**
+ *
+ *  Copyright © 2010, 2011 Inadco, Inc. All rights reserved.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ *
+ */
+package com.inadco.ecoadapters.pig;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.GnuParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.commons.lang.StringUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.SequenceFile.CompressionType;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.lib.output.SequenceFileOutputFormat;
+import org.apache.pig.PigException;
+
+/**
+ * Sequence file output settings of {@link SequenceFileStorage} and
+ * {@link SequenceFileProtobufStorage}, given as their options string:
+ * <P>
+ * 
+ * <pre>
+ * -codec snappy|lz4|zstd|gzip|bzip2|deflate|&lt;codec class&gt;
+ * -compressionType NONE|RECORD|BLOCK
+ * -blockSize &lt;bytes&gt;     uncompressed size of a compressed block (BLOCK)
+ * -syncInterval &lt;bytes&gt;  max bytes written between sync markers
+ * </pre>
+ * 
+ * e.g. <code>SequenceFileStorage('-codec snappy -blockSize 4194304')</code>.
+ * <P>
+ * 
+ * Options not given are taken from the job configuration
+ * (mapred.output.compression.codec, mapred.output.compression.type,
+ * io.seqfile.compress.blocksize), except that output is always compressed
+ * unless -compressionType NONE is given, and compression type defaults to
+ * BLOCK.
+ * <P>
+ * 
+ * Hadoop puts a sync marker in front of every compressed block, so with block
+ * compression -syncInterval just caps the block size. Otherwise hadoop writes
+ * one about every 2000 bytes of records on its own, so -syncInterval can only
+ * make them more frequent.
+ * <P>
+ * 
+ * {@link SequenceFileProtobufStorage} also takes
+ * 
+ * <pre>
+ * -key &lt;field&gt;[,&lt;field&gt;...]  message fields to make the record key of
+ * -sorted                      write sorted MapFiles
+ * </pre>
+ * 
+ * see there. MapFiles are written without the extra sync markers, so with
+ * -sorted, -syncInterval is only accepted with block compression (where it
+ * caps the block size).
+ * 
+ * @author dmitriy
+ * 
+ */
+final class SequenceFileOutputOptions {
+
+    static final String           SYNC_INTERVAL_PROP = "inadco.SequenceFileStorage.syncInterval";
+    static final String           BLOCK_SIZE_PROP    = "io.seqfile.compress.blocksize";
+    static final int              DEFAULT_BLOCK_SIZE = 1000000;
+
+    private static final String[] CODEC_NAMES        =
+                                                         { "snappy", "lz4", "zstd", "gzip", "bzip2", "deflate",
+                                                             "default" };
+    private static final String[] CODEC_CLASSES      =
+                                                         { "org.apache.hadoop.io.compress.SnappyCodec",
+                                                             "org.apache.hadoop.io.compress.Lz4Codec",
+                                                             "org.apache.hadoop.io.compress.ZStandardCodec",
+                                                             "org.apache.hadoop.io.compress.GzipCodec",
+                                                             "org.apache.hadoop.io.compress.BZip2Codec",
+                                                             "org.apache.hadoop.io.compress.DefaultCodec",
+                                                             "org.apache.hadoop.io.compress.DefaultCodec" };
+
+    private String                m_codecClass;
+    private CompressionType       m_compressionType;
+    private int                   m_blockSize;
+    private int                   m_syncInterval;
+    private String[]              m_keyFields;
+    private boolean               m_sorted;
+
+    /**
+     * @param options
+     *            options string, see above. null or empty means defaults.
+     * @param defaultCodec
+     *            codec class to use when there's no -codec, null to take it
+     *            from the job.
+     * @param keyOptions
+     *            whether -key and -sorted are accepted
+     */
+    SequenceFileOutputOptions(String options, Class<? extends CompressionCodec> defaultCodec, boolean keyOptions)
+        throws PigException {
+        super();
+        m_codecClass = defaultCodec == null ? null : defaultCodec.getName();
+        if (options == null || options.trim().length() == 0)
+            return;
+
+        CommandLine cl;
+        try {
+            cl = new GnuParser().parse(options(keyOptions), options.trim().split("\\s+"));
+        } catch (ParseException exc) {
+            StringWriter usage = new StringWriter();
+            new HelpFormatter().printOptions(new PrintWriter(usage), 80, options(keyOptions), 1, 2);
+            throw new PigException(String.format("Bad sequence file options '%s': %s. Available options:\n%s",
+                                                 options,
+                                                 exc.getMessage(),
+                                                 usage));
+        }
+        if (cl.getArgs().length > 0)
+            throw new PigException(String.format("Unexpected sequence file options '%s'.",
+                                                 StringUtils.join(cl.getArgs(), ' ')));
+
+        try {
+            if (cl.hasOption("codec"))
+                m_codecClass = codecClass(cl.getOptionValue("codec"));
+            if (cl.hasOption("compressionType"))
+                m_compressionType = CompressionType.valueOf(cl.getOptionValue("compressionType").toUpperCase());
+            if (cl.hasOption("blockSize"))
+                m_blockSize = Integer.parseInt(cl.getOptionValue("blockSize"));
+            if (cl.hasOption("syncInterval"))
+                m_syncInterval = Integer.parseInt(cl.getOptionValue("syncInterval"));
+            if (cl.hasOption("key"))
+                m_keyFields = cl.getOptionValue("key").split(",");
+            m_sorted = cl.hasOption("sorted");
+        } catch (IllegalArgumentException exc) {
+            throw new PigException(String.format("Bad sequence file options '%s': %s", options, exc.getMessage()));
+        }
+        if (m_blockSize < 0 || m_syncInterval < 0)
+            throw new PigException(String.format("Bad sequence file options '%s': negative size.", options));
+        if (m_sorted && m_keyFields == null)
+            throw new PigException(String.format("Bad sequence file options '%s': -sorted requires -key.", options));
+        if (m_sorted && m_syncInterval > 0 && m_compressionType != null && m_compressionType != CompressionType.BLOCK)
+            throw new PigException(String.format("Bad sequence file options '%s': -sorted only takes -syncInterval "
+                + "with BLOCK compression.", options));
+    }
+
+    private static Options options(boolean keyOptions) {
+        Options options = new Options();
+        options.addOption("codec", true, "compression codec: " + StringUtils.join(CODEC_NAMES, '|')
+            + " or codec class name");
+        options.addOption("compressionType", true, "NONE|RECORD|BLOCK");
+        options.addOption("blockSize", true, "compression block size, bytes");
+        options.addOption("syncInterval", true, "max bytes between sync markers");
+        if (keyOptions) {
+            options.addOption("key", true, "comma separated message fields to make the key of");
+            options.addOption("sorted", false, "write sorted map files");
+        }
+        return options;
+    }
+
+    private static String codecClass(String codec) {
+        for (int i = 0; i < CODEC_NAMES.length; i++)
+            if (CODEC_NAMES[i].equalsIgnoreCase(codec))
+                return CODEC_CLASSES[i];
+        return codec;
+    }
+
+    /**
+     * @return message fields of the key, null if not keyed.
+     */
+    String[] getKeyFields() {
+        return m_keyFields;
+    }
+
+    boolean isSorted() {
+        return m_sorted;
+    }
+
+    /**
+     * set up job's output for these options.
+     */
+    void apply(Job job) throws IOException {
+        Configuration conf = job.getConfiguration();
+        CompressionType compressionType = m_compressionType == null ? CompressionType.BLOCK : m_compressionType;
+
+        SequenceFileOutputFormat.setCompressOutput(job, compressionType != CompressionType.NONE);
+        SequenceFileOutputFormat.setOutputCompressionType(job, compressionType);
+        if (m_codecClass != null) {
+            Class<? extends CompressionCodec> codecClass;
+            try {
+                codecClass = conf.getClassByName(m_codecClass).asSubclass(CompressionCodec.class);
+            } catch (ClassNotFoundException exc) {
+                throw new IOException(String.format("Compression codec %s is not available in this hadoop.",
+                                                    m_codecClass), exc);
+            } catch (ClassCastException exc) {
+                throw new IOException(String.format("%s is not a compression codec.", m_codecClass), exc);
+            }
+            SequenceFileOutputFormat.setOutputCompressorClass(job, codecClass);
+        }
+        if (m_blockSize > 0)
+            conf.setInt(BLOCK_SIZE_PROP, m_blockSize);
+        if (m_syncInterval > 0) {
+            if (compressionType == CompressionType.BLOCK) {
+                // every block starts with a sync marker
+                if (conf.getInt(BLOCK_SIZE_PROP, DEFAULT_BLOCK_SIZE) > m_syncInterval)
+                    conf.setInt(BLOCK_SIZE_PROP, m_syncInterval);
+            } else
+                conf.setInt(SYNC_INTERVAL_PROP, m_syncInterval);
+        }
+    }
+
+}
@@ -21,6 +21,10 @@ package com.inadco.ecoadapters.pig;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -34,16 +38,19 @@ import org.apache.hadoop.mapreduce.lib.input.SequenceFileInputFormat;
 import org.apache.pig.Expression;
 import org.apache.pig.LoadFunc;
 import org.apache.pig.LoadMetadata;
+import org.apache.pig.LoadPushDown;
 import org.apache.pig.ResourceSchema;
 import org.apache.pig.ResourceStatistics;
 import org.apache.pig.backend.hadoop.executionengine.mapReduceLayer.PigSplit;
 import org.apache.pig.data.Tuple;
 import org.apache.pig.data.TupleFactory;
+import org.apache.pig.impl.logicalLayer.FrontendException;
 import org.apache.pig.impl.logicalLayer.schema.Schema;
+import org.apache.pig.impl.util.ObjectSerializer;
+import org.apache.pig.impl.util.UDFContext;
 
-import com.google.protobuf.DynamicMessage;
-import com.google.protobuf.Message;
 import com.google.protobuf.Descriptors.Descriptor;
+import com.google.protobuf.Descriptors.FieldDescriptor;
 import com.inadco.ecoadapters.EcoUtil;
 
 /**
@@ -76,21 +83,52 @@ import com.inadco.ecoadapters.EcoUtil;
  * describe A;
  * A: {LandingPageTitle: chararray,LandingPageKeyword: chararray,UniqueURL: chararray,IsDelete: boolean,IsNew: boolean,IsDirty: boolean,___ERROR___: chararray}
  * </pre>
+ * <p>
+ * 
+ * The loader supports projection push down, i.e. only attributes actually used
+ * by the script are converted into the tuples.
+ * <p>
+ * 
+ * Messages that can't be decoded come out as error tuples (all nulls except
+ * for the ERROR___ attribute holding the stack trace). If the script doesn't
+ * use ERROR___, there's nowhere to report the error, so the load fails
+ * instead.
+ * <p>
+ * 
+ * Filters over top level scalar (non-repeated, non-bytes) attributes are pushed
+ * into the loader too: pig sees such attributes as partition keys and hands
+ * conditions on them to {@link #setPartitionFilter(Expression)}. The loader
+ * then decodes the attributes the filter refers to first and the rest of the
+ * tuple only for records passing it, so no attribute is decoded twice.
+ * Messages that can't be decoded are not filtered, they are reported as
+ * above.
+ * <p>
  * 
  * @author Dmitriy
  **/
 
 public class SequenceFileProtobufLoader extends LoadFunc implements
-        LoadMetadata {
+        LoadMetadata, LoadPushDown {
 
     private static final Log LOG = LogFactory
             .getLog(SequenceFileProtobufLoader.class);
 
+    private static final String PROJECTION_PROPERTY = "inadco.SequenceFileProtobufLoader.projection";
+    private static final String FILTER_PROPERTY = "inadco.SequenceFileProtobufLoader.filter";
+    private static final String FILTER_ATTRS_PROPERTY = "inadco.SequenceFileProtobufLoader.filterAttrs";
+
     protected TupleFactory m_tupleFactory = TupleFactory.getInstance();
 
     private Descriptor m_msgDesc;
-    private Message.Builder m_msgBuilder;
     private Schema m_pigSchema;
+    private PigUtil.Proto2TupleMap m_tupleMap;
+    private ProtoTupleReader m_tupleReader;
+    private TuplePredicate m_filter;
+    private ProtoTupleReader m_filterReader;
+    // attributes the tuples are returned with; the filter may need more
+    private int m_outSize;
+    private boolean m_projectionApplied;
+    private String m_udfContextSignature;
 
     private InputFormat<Text, BytesWritable> m_inputFormat;
     private RecordReader<Text, BytesWritable> m_recordReader;
@@ -106,8 +144,8 @@ public class SequenceFileProtobufLoader extends LoadFunc implements
                 LOG.debug("Message Desc String:" + msgDescString);
             }
             m_msgDesc = parseMsgDesc(msgDescString);
-            m_msgBuilder = DynamicMessage.newBuilder(m_msgDesc);
             m_pigSchema = PigUtil.generatePigSchemaFromProto(m_msgDesc);
+            m_tupleMap = PigUtil.generateProto2TupleMap(m_msgDesc);
 
             m_inputFormat = new SequenceFileInputFormat<Text, BytesWritable>();
 
@@ -140,8 +178,22 @@ public class SequenceFileProtobufLoader extends LoadFunc implements
     @Override
     public String[] getPartitionKeys(String location, Job job)
             throws IOException {
-        // TODO Auto-generated method stub
-        return null;
+        // not real partitions, but this is how pig 0.11 pushes filters into
+        // loaders. We can evaluate filters on any top level scalar.
+        List<String> keys = new ArrayList<String>();
+        for (FieldDescriptor fd : m_msgDesc.getFields()) {
+            if (fd.isRepeated())
+                continue;
+            switch (fd.getType()) {
+            case MESSAGE:
+            case GROUP:
+            case BYTES:
+                continue;
+            default:
+                keys.add(fd.getName());
+            }
+        }
+        return keys.toArray(new String[keys.size()]);
     }
 
     @Override
@@ -159,8 +211,54 @@ public class SequenceFileProtobufLoader extends LoadFunc implements
 
     @Override
     public void setPartitionFilter(Expression expr) throws IOException {
-        // TODO Auto-generated method stub
+        List<String> columns = new ArrayList<String>();
+        TuplePredicate filter = TuplePredicate.compile(expr, columns);
+
+        StringBuilder sb = new StringBuilder();
+        for (String column : columns) {
+            int attr = m_pigSchema.getPosition(column);
+            if (attr < 0)
+                throw new IOException(String.format(
+                        "Unknown attribute '%s' in pushed filter.", column));
+            if (sb.length() > 0)
+                sb.append(',');
+            sb.append(attr);
+        }
+
+        if (LOG.isDebugEnabled())
+            LOG.debug("Pushed filter: " + expr);
+
+        Properties props = getUDFProperties();
+        props.setProperty(FILTER_PROPERTY, ObjectSerializer.serialize(filter));
+        props.setProperty(FILTER_ATTRS_PROPERTY, sb.toString());
+    }
+
+    @Override
+    public void setUDFContextSignature(String signature) {
+        m_udfContextSignature = signature;
+    }
 
+    @Override
+    public List<OperatorSet> getFeatures() {
+        return Arrays.asList(LoadPushDown.OperatorSet.PROJECTION);
+    }
+
+    @Override
+    public RequiredFieldResponse pushProjection(
+            RequiredFieldList requiredFieldList) throws FrontendException {
+        if (requiredFieldList == null || requiredFieldList.getFields() == null)
+            return new RequiredFieldResponse(false);
+
+        // we only project top level attributes. nested ones are still
+        // converted in their entirety.
+        StringBuilder sb = new StringBuilder();
+        for (RequiredField rf : requiredFieldList.getFields()) {
+            if (sb.length() > 0)
+                sb.append(',');
+            sb.append(rf.getIndex());
+        }
+        getUDFProperties().setProperty(PROJECTION_PROPERTY, sb.toString());
+        return new RequiredFieldResponse(true);
     }
 
     @Override
@@ -169,6 +267,68 @@ public class SequenceFileProtobufLoader extends LoadFunc implements
             throws IOException {
         m_recordReader = reader;
 
+        if (!m_projectionApplied) {
+            Properties props = getUDFProperties();
+            String projection = props.getProperty(PROJECTION_PROPERTY);
+            int[] attrs = projection != null ? parseAttrs(projection) : null;
+            if (attrs != null)
+                m_tupleMap = m_tupleMap.project(attrs);
+            m_outSize = m_tupleMap.size();
+
+            String filter = props.getProperty(FILTER_PROPERTY);
+            if (filter != null)
+                prepareFilter((TuplePredicate) ObjectSerializer.deserialize(filter),
+                        parseAttrs(props.getProperty(FILTER_ATTRS_PROPERTY)),
+                        attrs);
+            m_projectionApplied = true;
+        }
+        if (m_tupleReader == null)
+            m_tupleReader = ProtoTupleReader.create(m_tupleMap, m_tupleFactory);
+    }
+
+    /**
+     * set up decoding in two turns over the same tuples: filter attributes
+     * first, the rest if the filter passes. Filter attributes not projected
+     * are appended to the tuples and cut off again before returning them.
+     * 
+     * @param filterAttrs
+     *            attributes the filter refers to, in its column order
+     * @param attrs
+     *            projection, or null if all attributes are loaded
+     */
+    private void prepareFilter(TuplePredicate filter, int[] filterAttrs,
+            int[] attrs) throws IOException {
+        if (attrs == null) {
+            attrs = new int[m_outSize];
+            for (int i = 0; i < attrs.length; i++)
+                attrs[i] = i;
+        }
+        int[] loadAttrs = Arrays.copyOf(attrs, attrs.length
+                + filterAttrs.length);
+        int loadSize = attrs.length;
+        int[] positions = new int[filterAttrs.length];
+        for (int i = 0; i < filterAttrs.length; i++) {
+            int pos = 0;
+            while (pos < loadSize && loadAttrs[pos] != filterAttrs[i])
+                pos++;
+            if (pos == loadSize)
+                loadAttrs[loadSize++] = filterAttrs[i];
+            positions[i] = pos;
+        }
+
+        PigUtil.Proto2TupleMap loadMap = PigUtil.generateProto2TupleMap(
+                m_msgDesc).project(Arrays.copyOf(loadAttrs, loadSize));
+        boolean[] filtered = new boolean[loadSize];
+        for (int pos : positions)
+            filtered[pos] = true;
+        boolean[] rest = new boolean[loadSize];
+        for (int i = 0; i < loadSize; i++)
+            rest[i] = !filtered[i];
+
+        m_filter = filter.withColumns(positions);
+        m_filterReader = ProtoTupleReader.create(loadMap, m_tupleFactory,
+                filtered);
+        m_tupleReader = ProtoTupleReader.create(loadMap, m_tupleFactory, rest);
     }
 
     @Override
@@ -180,15 +340,28 @@ public class SequenceFileProtobufLoader extends LoadFunc implements
     public Tuple getNext() throws IOException {
 
         try {
-            if (!m_recordReader.nextKeyValue())
-                return null;
-
-            BytesWritable bw = m_recordReader.getCurrentValue();
-
-            Message msg = m_msgBuilder.clone()
-                    .mergeFrom(bw.getBytes(), 0, bw.getLength()).buildPartial();
-            return PigUtil
-                    .protoMessage2PigTuple(msg, m_msgDesc, m_tupleFactory);
+            while (true) {
+                if (!m_recordReader.nextKeyValue())
+                    return null;
+                BytesWritable bw = m_recordReader.getCurrentValue();
+
+                // decode straight off the wire, skipping projected out fields
+                if (m_filter == null)
+                    return m_tupleReader.read(bw.getBytes(), 0, bw.getLength());
+
+                Tuple tuple = m_filterReader.read(bw.getBytes(), 0,
+                        bw.getLength());
+                if (!m_filter.accept(tuple))
+                    continue;
+                m_tupleReader.mergeFrom(bw.getBytes(), 0, bw.getLength(),
+                        tuple);
+                if (tuple.size() == m_outSize)
+                    return tuple;
+                Tuple outTuple = m_tupleFactory.newTuple(m_outSize);
+                for (int i = 0; i < m_outSize; i++)
+                    outTuple.set(i, tuple.get(i));
+                return outTuple;
+            }
         } catch (InterruptedException exc) {
             throw new IOException(exc);
         } catch (IOException exc) {
@@ -197,21 +370,39 @@ public class SequenceFileProtobufLoader extends LoadFunc implements
 
     }
 
-    private Tuple reportError(Throwable thr) {
-        Tuple msgTuple = m_tupleFactory.newTuple();
-        int errInd = m_msgDesc.getFields().size();
-        for (int i = 0; i < errInd; i++)
-            msgTuple.append(null);
+    private static int[] parseAttrs(String attrsStr) {
+        String[] attrStrs = attrsStr.length() == 0 ? new String[0] : attrsStr
+                .split(",");
+        int[] attrs = new int[attrStrs.length];
+        for (int i = 0; i < attrs.length; i++)
+            attrs[i] = Integer.parseInt(attrStrs[i]);
+        return attrs;
+    }
+
+    private Tuple reportError(Throwable thr) throws IOException {
+        int errInd = m_tupleMap.getErrorAttr();
+        if (errInd < 0)
+            // error attribute is projected out. A tuple of nulls would pass
+            // for a valid record.
+            throw new IOException(String.format(
+                    "Unable to decode message (use %s to get error tuples).",
+                    PigUtil.ERROR_ATTR), thr);
+        Tuple msgTuple = m_tupleFactory.newTuple(m_tupleMap.size());
 
         StringWriter stw = new StringWriter();
         PrintWriter pw = new PrintWriter(stw);
         thr.printStackTrace(pw);
         pw.close();
 
-        msgTuple.append(thr.getMessage() + "\n" + stw.toString());
+        msgTuple.set(errInd, thr.getMessage() + "\n" + stw.toString());
 
         return msgTuple;
 
     }
 
+    private Properties getUDFProperties() {
+        return UDFContext.getUDFContext().getUDFProperties(getClass(),
+                new String[] { m_udfContextSignature });
+    }
+
 }
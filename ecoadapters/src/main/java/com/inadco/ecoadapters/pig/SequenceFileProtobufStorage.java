@@ -25,11 +25,11 @@ import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.BytesWritable;
 import org.apache.hadoop.io.Text;
-import org.apache.hadoop.io.SequenceFile.CompressionType;
-import org.apache.hadoop.io.compress.DefaultCodec;
 import org.apache.hadoop.mapreduce.Job;
 import org.apache.hadoop.mapreduce.OutputFormat;
 import org.apache.hadoop.mapreduce.RecordWriter;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.MapFileOutputFormat;
 import org.apache.hadoop.mapreduce.lib.output.SequenceFileOutputFormat;
 import org.apache.pig.PigException;
 import org.apache.pig.ResourceSchema;
@@ -38,9 +38,10 @@ import org.apache.pig.data.Tuple;
 import org.apache.pig.impl.logicalLayer.schema.Schema;
 import org.apache.pig.impl.util.UDFContext;
 
-import com.google.protobuf.DynamicMessage;
-import com.google.protobuf.Message;
+import com.google.protobuf.ByteString;
 import com.google.protobuf.Descriptors.Descriptor;
+import com.google.protobuf.Descriptors.EnumValueDescriptor;
+import com.google.protobuf.Descriptors.FieldDescriptor;
 import com.inadco.ecoadapters.EcoUtil;
 import com.inadco.ecoadapters.pig.PigUtil.Tuple2ProtoMap;
 
@@ -69,6 +70,24 @@ import com.inadco.ecoadapters.pig.PigUtil.Tuple2ProtoMap;
  * although i did not try it.
  * <P>
  * 
+ * Second argument takes sequence file options (see
+ * {@link SequenceFileOutputOptions}). Records are written with empty keys
+ * unless <code>-key</code> names (non-repeated, non-message) fields of the
+ * message to make keys of, e.g.
+ * <P>
+ * 
+ * <pre>
+ * B = order A by userId, ts parallel 20;
+ * store B into '$out' using SequenceFileProtobufStorage('...', '-key userId,ts -sorted');
+ * </pre>
+ * 
+ * Keys are encoded so that they sort as the field values do (see
+ * {@link #appendSortableKey(StringBuilder, FieldDescriptor, Object)}).
+ * <code>-sorted</code> writes MapFiles (data + index, see io.map.index.interval)
+ * instead, which requires the output to be ordered by the key fields, as in the
+ * example above. Pig's order by then makes part files follow each other in key
+ * order as well, so the output can be merge joined or looked up in by key.
+ * <P>
  * 
  * @author dmitriy
  * 
@@ -80,22 +99,49 @@ public class SequenceFileProtobufStorage extends StoreFunc {
 
     private static final String                           SCHEMA_PROPERTY = "inadco.SequenceFileProtobufStorage.schema";
 
+    /**
+     * separates key fields. Sorts before anything else, so shorter string
+     * values still sort first.
+     */
+    public static final char                              KEY_SEPARATOR   = '\u0000';
+
     private Text                                          m_key           = new Text();
     private BytesWritable                                 m_value         = new BytesWritable();
 
-    private SequenceFileOutputFormat<Text, BytesWritable> m_outputFormat;
+    private FileOutputFormat<?, ?>                        m_outputFormat;
     private RecordWriter<Text, BytesWritable>             m_recordWriter;
 
     private String                                        m_msgDescString;
     private Schema                                        m_pigSchema;
     private Descriptor                                    m_msgDesc;
-    private Message.Builder                               m_msgBuilder;
     private Tuple2ProtoMap                                m_tuple2ProtoMap;
+    private ProtoTupleWriter                              m_tupleWriter;
+    private SequenceFileOutputOptions                     m_options;
+    // key fields and their pig attributes, if keyed
+    private FieldDescriptor[]                             m_keyFields;
+    private int[]                                         m_keyAttrs;
+    private StringBuilder                                 m_keyBuilder    = new StringBuilder();
+
+    public SequenceFileProtobufStorage(String msgDescString) throws PigException {
+        this(msgDescString, "");
+    }
 
-    public SequenceFileProtobufStorage(String msgDescString) {
+    /**
+     * @param msgDescString
+     *            message descriptor
+     * @param options
+     *            sequence file output options, see
+     *            {@link SequenceFileOutputOptions}. Codec defaults to the
+     *            job's mapred.output.compression.codec.
+     */
+    public SequenceFileProtobufStorage(String msgDescString, String options) throws PigException {
         super();
-        m_outputFormat = new SequenceFileOutputFormat<Text, BytesWritable>();
         m_msgDescString = msgDescString;
+        m_options = new SequenceFileOutputOptions(options, null, true);
+        if (m_options.isSorted())
+            m_outputFormat = new MapFileOutputFormat();
+        else
+            m_outputFormat = new SequenceFileStorageOutputFormat<Text, BytesWritable>();
     }
 
     @Override
@@ -114,11 +160,7 @@ public class SequenceFileProtobufStorage extends StoreFunc {
     @Override
     public void setStoreLocation(String location, Job job) throws IOException {
         SequenceFileOutputFormat.setOutputPath(job, new Path(location));
-        SequenceFileOutputFormat.setCompressOutput(job, true);
-        SequenceFileOutputFormat.setOutputCompressionType(job, CompressionType.BLOCK);
-        // this now comes from default configuration property, no need to hardcode this, really. 
-        
-//        SequenceFileOutputFormat.setOutputCompressorClass(job, DefaultCodec.class);
+        m_options.apply(job);
         job.setOutputKeyClass(Text.class);
         job.setOutputValueClass(BytesWritable.class);
 
@@ -130,11 +172,26 @@ public class SequenceFileProtobufStorage extends StoreFunc {
             if (m_tuple2ProtoMap == null)
                 _initMessageDesc(m_msgDescString); // lazy 
             
-            Message.Builder bldr = m_msgBuilder.clone();
+            int size = m_tupleWriter.prepare(f, 0, f.size());
+            // serialize straight into the value's buffer. It only grows, and
+            // there's nothing worth copying over when it does.
+            if (size > m_value.getCapacity())
+                m_value.setSize(0);
+            m_value.setSize(size);
+            m_tupleWriter.write(m_value.getBytes(), 0, size);
 
-            PigUtil.pigTuple2ProtoMessage(f, m_tuple2ProtoMap, bldr, 0, f.size());
-            byte[] val = bldr.build().toByteArray();
-            m_value.set(val, 0, val.length);
+            if (m_keyFields != null) {
+                m_keyBuilder.setLength(0);
+                for (int i = 0; i < m_keyFields.length; i++) {
+                    if (i > 0)
+                        m_keyBuilder.append(KEY_SEPARATOR);
+                    Object pigValue = m_keyAttrs[i] < f.size() ? f.get(m_keyAttrs[i]) : null;
+                    appendSortableKey(m_keyBuilder,
+                                      m_keyFields[i],
+                                      PigUtil.parseSimpleProtoType(m_keyFields[i], pigValue));
+                }
+                m_key.set(m_keyBuilder.toString());
+            }
 
             // if ( f.size()!= 1 )
             // throw new IOException
@@ -183,8 +240,10 @@ public class SequenceFileProtobufStorage extends StoreFunc {
                 m_msgDesc = EcoUtil.inferDescriptorFromFilesystem(msgDescString);
             else
                 m_msgDesc = EcoUtil.inferDescriptorFromClassName(msgDescString);
-            m_msgBuilder = DynamicMessage.newBuilder(m_msgDesc);
             m_tuple2ProtoMap = PigUtil.generatePigTuple2ProtoMap(m_pigSchema, m_msgDesc);
+            m_tupleWriter = ProtoTupleWriter.create(m_tuple2ProtoMap);
+            if (m_options.getKeyFields() != null)
+                initKeyFields(m_options.getKeyFields());
 
             if (LOG.isDebugEnabled())
                 LOG.debug(String.format("Loaded LoadFunc for message class:%s", msgDescString));
@@ -195,4 +254,92 @@ public class SequenceFileProtobufStorage extends StoreFunc {
         }
     }
 
+    private void initKeyFields(String[] keyFields) throws PigException {
+        m_keyFields = new FieldDescriptor[keyFields.length];
+        m_keyAttrs = new int[keyFields.length];
+        for (int i = 0; i < keyFields.length; i++) {
+            FieldDescriptor fd = m_msgDesc.findFieldByName(keyFields[i].trim());
+            if (fd == null)
+                throw new PigException(String.format("Key field '%s' is not found in message %s.",
+                                                     keyFields[i],
+                                                     m_msgDesc.getFullName()));
+            if (fd.isRepeated() || fd.getJavaType() == FieldDescriptor.JavaType.MESSAGE)
+                throw new PigException(String.format("Key field %s must be a non-repeated simple field.",
+                                                     fd.getFullName()));
+            m_keyAttrs[i] = -1;
+            for (int attr = 0; attr < m_tuple2ProtoMap.size(); attr++)
+                if (m_tuple2ProtoMap.getField(attr) == fd) {
+                    m_keyAttrs[i] = attr;
+                    break;
+                }
+            if (m_keyAttrs[i] < 0)
+                throw new PigException(String.format("Key field %s is not in the stored tuples.", fd.getFullName()));
+            m_keyFields[i] = fd;
+        }
+    }
+
+    /**
+     * append protobuf field value to a record key so that {@link Text}
+     * ordering of the keys follows the ordering of the values: strings as is,
+     * numbers as fixed width hex with the sign (and for floating point, the
+     * rest of the bits of negative numbers) flipped, bytes as hex, enums by
+     * name. Values are ordered as pig orders them, so unsigned numbers are
+     * signed ints and longs here too. null appends nothing, so it sorts first.
+     * <P>
+     * 
+     * This is also how to make keys to look records up with.
+     * 
+     * @param protoValue
+     *            value of the field as protobuf has it
+     */
+    public static void appendSortableKey(StringBuilder key, FieldDescriptor fd, Object protoValue) {
+        if (protoValue == null)
+            return;
+        switch (fd.getType()) {
+        case STRING:
+            key.append((String) protoValue);
+            break;
+        case BYTES:
+            for (byte b : ((ByteString) protoValue).toByteArray())
+                appendHex(key, b & 0xff, 2);
+            break;
+        case BOOL:
+            key.append((Boolean) protoValue ? '1' : '0');
+            break;
+        case INT32:
+        case SINT32:
+        case SFIXED32:
+        case UINT32:
+        case FIXED32:
+            appendHex(key, ((Integer) protoValue) ^ Integer.MIN_VALUE, 8);
+            break;
+        case INT64:
+        case SINT64:
+        case SFIXED64:
+        case UINT64:
+        case FIXED64:
+            appendHex(key, ((Long) protoValue) ^ Long.MIN_VALUE, 16);
+            break;
+        case FLOAT:
+            int fbits = Float.floatToIntBits((Float) protoValue);
+            appendHex(key, fbits ^ (fbits < 0 ? -1 : Integer.MIN_VALUE), 8);
+            break;
+        case DOUBLE:
+            long dbits = Double.doubleToLongBits((Double) protoValue);
+            appendHex(key, dbits ^ (dbits < 0 ? -1L : Long.MIN_VALUE), 16);
+            break;
+        case ENUM:
+            // pig has enums as their names, so that's how they are sorted
+            key.append(((EnumValueDescriptor) protoValue).getName());
+            break;
+        default:
+            throw new IllegalArgumentException(String.format("Field %s can't be a key.", fd.getFullName()));
+        }
+    }
+
+    private static void appendHex(StringBuilder key, long value, int digits) {
+        for (int shift = (digits - 1) * 4; shift >= 0; shift -= 4)
+            key.append(Character.forDigit((int) (value >>> shift) & 0xf, 16));
+    }
+
 }
@@ -25,12 +25,12 @@ import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.BytesWritable;
 import org.apache.hadoop.io.Text;
-import org.apache.hadoop.io.SequenceFile.CompressionType;
 import org.apache.hadoop.io.compress.DefaultCodec;
 import org.apache.hadoop.mapreduce.Job;
 import org.apache.hadoop.mapreduce.OutputFormat;
 import org.apache.hadoop.mapreduce.RecordWriter;
 import org.apache.hadoop.mapreduce.lib.output.SequenceFileOutputFormat;
+import org.apache.pig.PigException;
 import org.apache.pig.StoreFunc;
 import org.apache.pig.data.DataByteArray;
 import org.apache.pig.data.DataType;
@@ -41,6 +41,11 @@ import org.apache.pig.data.Tuple;
  * loaders
  * 
  * Updated for pig 0.7.0 interfaces
+ * <P>
+ * 
+ * Output is block compressed with the default codec unless told otherwise by
+ * the options, see {@link SequenceFileOutputOptions}, e.g.
+ * <code>SequenceFileStorage('-codec snappy')</code>.
  * 
  * @author dmitriy
  * 
@@ -55,10 +60,21 @@ public class SequenceFileStorage extends StoreFunc {
 
     private SequenceFileOutputFormat<Text, BytesWritable> m_outputFormat;
     private RecordWriter<Text, BytesWritable>             m_recordWriter;
+    private SequenceFileOutputOptions                     m_options;
+
+    public SequenceFileStorage() throws PigException {
+        this("");
+    }
 
-    public SequenceFileStorage() {
+    /**
+     * @param options
+     *            sequence file output options, see
+     *            {@link SequenceFileOutputOptions}.
+     */
+    public SequenceFileStorage(String options) throws PigException {
         super();
-        m_outputFormat = new SequenceFileOutputFormat<Text, BytesWritable>();
+        m_outputFormat = new SequenceFileStorageOutputFormat<Text, BytesWritable>();
+        m_options = new SequenceFileOutputOptions(options, DefaultCodec.class, false);
     }
 
     @Override
@@ -77,9 +93,7 @@ public class SequenceFileStorage extends StoreFunc {
     @Override
     public void setStoreLocation(String location, Job job) throws IOException {
         SequenceFileOutputFormat.setOutputPath(job, new Path(location));
-        SequenceFileOutputFormat.setCompressOutput(job, true);
-        SequenceFileOutputFormat.setOutputCompressionType(job, CompressionType.BLOCK);
-        SequenceFileOutputFormat.setOutputCompressorClass(job, DefaultCodec.class);
+        m_options.apply(job);
         job.setOutputKeyClass(Text.class);
         job.setOutputValueClass(BytesWritable.class);
     }
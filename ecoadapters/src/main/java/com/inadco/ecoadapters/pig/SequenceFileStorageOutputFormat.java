@@ -0,0 +1,87 @@
+/**
+ *
+ *  Copyright © 2010, 2011 Inadco, Inc. All rights reserved.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ *
+ */
+package com.inadco.ecoadapters.pig;
+
+import java.io.IOException;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.SequenceFile.CompressionType;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.DefaultCodec;
+import org.apache.hadoop.mapreduce.RecordWriter;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.output.SequenceFileOutputFormat;
+import org.apache.hadoop.util.ReflectionUtils;
+
+/**
+ * {@link SequenceFileOutputFormat} that also puts sync markers at least every
+ * {@link SequenceFileOutputOptions#SYNC_INTERVAL_PROP} bytes, if set. Not
+ * used with block compression, where each block gets one anyway (see
+ * {@link SequenceFileOutputOptions}).
+ * 
+ * @author dmitriy
+ * 
+ */
+public class SequenceFileStorageOutputFormat<K, V> extends SequenceFileOutputFormat<K, V> {
+
+    @Override
+    public RecordWriter<K, V> getRecordWriter(TaskAttemptContext context) throws IOException, InterruptedException {
+        Configuration conf = context.getConfiguration();
+        final int syncInterval = conf.getInt(SequenceFileOutputOptions.SYNC_INTERVAL_PROP, 0);
+        if (syncInterval <= 0)
+            return super.getRecordWriter(context);
+
+        CompressionCodec codec = null;
+        CompressionType compressionType = CompressionType.NONE;
+        if (getCompressOutput(context)) {
+            compressionType = getOutputCompressionType(context);
+            codec = ReflectionUtils.newInstance(getOutputCompressorClass(context, DefaultCodec.class), conf);
+        }
+        Path file = getDefaultWorkFile(context, "");
+        final SequenceFile.Writer out =
+            SequenceFile.createWriter(conf,
+                                      SequenceFile.Writer.file(file),
+                                      SequenceFile.Writer.keyClass(context.getOutputKeyClass()),
+                                      SequenceFile.Writer.valueClass(context.getOutputValueClass()),
+                                      SequenceFile.Writer.compression(compressionType, codec),
+                                      SequenceFile.Writer.progressable(context));
+
+        return new RecordWriter<K, V>() {
+
+            private long m_lastSync = out.getLength();
+
+            @Override
+            public void write(K key, V value) throws IOException {
+                out.append(key, value);
+                if (out.getLength() - m_lastSync >= syncInterval) {
+                    out.sync();
+                    m_lastSync = out.getLength();
+                }
+            }
+
+            @Override
+            public void close(TaskAttemptContext context) throws IOException {
+                out.close();
+            }
+        };
+    }
+
+}
@@ -0,0 +1,319 @@
+/**
+ *
+ *  Copyright © 2010, 2011 Inadco, Inc. All rights reserved.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ *
+ */
+package com.inadco.ecoadapters.pig;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import org.apache.pig.Expression;
+import org.apache.pig.Expression.BinaryExpression;
+import org.apache.pig.backend.executionengine.ExecException;
+import org.apache.pig.data.DataByteArray;
+import org.apache.pig.data.Tuple;
+
+/**
+ * Compiled form of a filter expression pushed into a loader (see
+ * {@link SequenceFileProtobufLoader#setPartitionFilter(Expression)} or
+ * {@link HBaseProtobufLoader#setPartitionFilter(Expression)}),
+ * evaluated over tuples holding just the columns the filter refers to, or
+ * over wider tuples once the columns are placed (see {@link #withColumns(int[])}).
+ * <P>
+ * 
+ * Follows pig semantics: comparisons and arithmetic with nulls yield null,
+ * <code>and</code>/<code>or</code> are three-valued, and a record passes only
+ * if the filter evaluates to true. Comparisons and arithmetic on values that
+ * can't be compared (e.g. a chararray constant against a long column) yield
+ * null as well, rather than failing the task.
+ * <P>
+ * 
+ * Serializable so it can travel to the backend thru the UDF context.
+ * 
+ * @author dmitriy
+ * 
+ */
+abstract class TuplePredicate implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    abstract Object eval(Tuple tuple) throws ExecException;
+
+    boolean accept(Tuple tuple) throws ExecException {
+        return Boolean.TRUE.equals(eval(tuple));
+    }
+
+    /**
+     * @param positions
+     *            per column of the filter (in the order reported by
+     *            {@link #compile(Expression, List)}), its position in the
+     *            tuples to evaluate the filter against from now on
+     * @return same filter reading its columns from the given positions
+     */
+    abstract TuplePredicate withColumns(int[] positions) throws IOException;
+
+    /**
+     * @param columns
+     *            receives names of the columns referred to by the filter, in
+     *            the order of their positions in the tuples the compiled
+     *            filter is evaluated against.
+     */
+    static TuplePredicate compile(Expression expr, List<String> columns) throws IOException {
+        switch (expr.getOpType()) {
+        case TERM_COL:
+            String name = ((Expression.Column) expr).getName();
+            int pos = columns.indexOf(name);
+            if (pos < 0) {
+                pos = columns.size();
+                columns.add(name);
+            }
+            return new Col(pos);
+        case TERM_CONST:
+            Object value = ((Expression.Const) expr).getValue();
+            if (value != null && !(value instanceof Serializable))
+                throw new IOException(String.format("Unsupported constant '%s' in pushed filter.", value));
+            return new Const(value);
+        default:
+            if (!(expr instanceof BinaryExpression))
+                throw new IOException(String.format("Unsupported pushed filter expression %s.", expr));
+            BinaryExpression bexpr = (BinaryExpression) expr;
+            return new BinaryOp(expr.getOpType(), compile(bexpr.getLhs(), columns), compile(bexpr.getRhs(),
+                                                                                            columns));
+        }
+    }
+
+    static final class Col extends TuplePredicate {
+
+        private static final long serialVersionUID = 1L;
+        private final int         m_pos;
+
+        Col(int pos) {
+            super();
+            m_pos = pos;
+        }
+
+        @Override
+        Object eval(Tuple tuple) throws ExecException {
+            return tuple.get(m_pos);
+        }
+
+        @Override
+        TuplePredicate withColumns(int[] positions) {
+            return new Col(positions[m_pos]);
+        }
+    }
+
+    static final class Const extends TuplePredicate {
+
+        private static final long serialVersionUID = 1L;
+        private final Object      m_value;
+
+        Const(Object value) {
+            super();
+            m_value = value;
+        }
+
+        @Override
+        Object eval(Tuple tuple) {
+            return m_value;
+        }
+
+        @Override
+        TuplePredicate withColumns(int[] positions) {
+            return this;
+        }
+    }
+
+    static final class BinaryOp extends TuplePredicate {
+
+        private static final long       serialVersionUID = 1L;
+        private final Expression.OpType m_op;
+        private final TuplePredicate    m_lhs;
+        private final TuplePredicate    m_rhs;
+        // matches() only exists in pig 0.12+ expressions
+        private final boolean           m_match;
+        // compiled lazily for constant patterns
+        private transient Pattern       m_pattern;
+
+        BinaryOp(Expression.OpType op, TuplePredicate lhs, TuplePredicate rhs) throws IOException {
+            super();
+            m_op = op;
+            m_lhs = lhs;
+            m_rhs = rhs;
+            m_match = isMatch(op);
+            if (m_match)
+                return;
+            switch (op) {
+            case OP_AND:
+            case OP_OR:
+            case OP_EQ:
+            case OP_NE:
+            case OP_GT:
+            case OP_GE:
+            case OP_LT:
+            case OP_LE:
+            case OP_PLUS:
+            case OP_MINUS:
+            case OP_TIMES:
+            case OP_DIV:
+            case OP_MOD:
+                break;
+            default:
+                throw new IOException(String.format("Unsupported operation %s in pushed filter.", op));
+            }
+        }
+
+        @Override
+        Object eval(Tuple tuple) throws ExecException {
+            Object l = m_lhs.eval(tuple);
+
+            // short circuit three-valued logic
+            if (m_op == Expression.OpType.OP_AND) {
+                if (Boolean.FALSE.equals(l))
+                    return Boolean.FALSE;
+                Object r = m_rhs.eval(tuple);
+                if (Boolean.FALSE.equals(r))
+                    return Boolean.FALSE;
+                return l == null || r == null ? null : Boolean.TRUE;
+            }
+            if (m_op == Expression.OpType.OP_OR) {
+                if (Boolean.TRUE.equals(l))
+                    return Boolean.TRUE;
+                Object r = m_rhs.eval(tuple);
+                if (Boolean.TRUE.equals(r))
+                    return Boolean.TRUE;
+                return l == null || r == null ? null : Boolean.FALSE;
+            }
+
+            Object r = m_rhs.eval(tuple);
+            if (l == null || r == null)
+                return null;
+            if (m_match)
+                return matches(l.toString(), r.toString());
+
+            Integer cmp;
+            switch (m_op) {
+            case OP_EQ:
+                return (cmp = compare(l, r)) == null ? null : cmp == 0;
+            case OP_NE:
+                return (cmp = compare(l, r)) == null ? null : cmp != 0;
+            case OP_GT:
+                return (cmp = compare(l, r)) == null ? null : cmp > 0;
+            case OP_GE:
+                return (cmp = compare(l, r)) == null ? null : cmp >= 0;
+            case OP_LT:
+                return (cmp = compare(l, r)) == null ? null : cmp < 0;
+            case OP_LE:
+                return (cmp = compare(l, r)) == null ? null : cmp <= 0;
+            default:
+                return arithmetic(m_op, l, r);
+            }
+        }
+
+        @Override
+        TuplePredicate withColumns(int[] positions) throws IOException {
+            return new BinaryOp(m_op, m_lhs.withColumns(positions), m_rhs.withColumns(positions));
+        }
+
+        private boolean matches(String s, String regex) {
+            Pattern pattern = m_pattern;
+            if (pattern == null || !pattern.pattern().equals(regex))
+                m_pattern = pattern = Pattern.compile(regex);
+            return pattern.matcher(s).matches();
+        }
+    }
+
+    static boolean isMatch(Expression.OpType op) {
+        return "OP_MATCH".equals(op.name());
+    }
+
+    /**
+     * @return null if the values can't be compared
+     */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private static Integer compare(Object l, Object r) {
+        if (l instanceof Number && r instanceof Number) {
+            if (isIntegral(l) && isIntegral(r)) {
+                long ll = ((Number) l).longValue(), rl = ((Number) r).longValue();
+                return ll < rl ? -1 : ll == rl ? 0 : 1;
+            }
+            return Double.compare(((Number) l).doubleValue(), ((Number) r).doubleValue());
+        }
+        // e.g. hbase keys compared with character literals
+        if (l instanceof DataByteArray && r instanceof String)
+            r = new DataByteArray((String) r);
+        else if (l instanceof String && r instanceof DataByteArray)
+            l = new DataByteArray((String) l);
+        if (l instanceof Comparable && l.getClass() == r.getClass())
+            return ((Comparable) l).compareTo(r);
+        return null;
+    }
+
+    /**
+     * @return null for non-numeric operands
+     */
+    private static Object arithmetic(Expression.OpType op, Object l, Object r) {
+        if (!(l instanceof Number && r instanceof Number))
+            return null;
+        Number ln = (Number) l, rn = (Number) r;
+        if (isIntegral(ln) && isIntegral(rn)) {
+            long a = ln.longValue(), b = rn.longValue(), res;
+            switch (op) {
+            case OP_PLUS:
+                res = a + b;
+                break;
+            case OP_MINUS:
+                res = a - b;
+                break;
+            case OP_TIMES:
+                res = a * b;
+                break;
+            case OP_DIV:
+                if (b == 0)
+                    return null;
+                res = a / b;
+                break;
+            default:
+                if (b == 0)
+                    return null;
+                res = a % b;
+                break;
+            }
+            return res;
+        }
+        double a = ln.doubleValue(), b = rn.doubleValue();
+        switch (op) {
+        case OP_PLUS:
+            return a + b;
+        case OP_MINUS:
+            return a - b;
+        case OP_TIMES:
+            return a * b;
+        case OP_DIV:
+            return a / b;
+        default:
+            return a % b;
+        }
+    }
+
+    private static boolean isIntegral(Object n) {
+        return n instanceof Integer || n instanceof Long || n instanceof Short || n instanceof Byte;
+    }
+
+}
@@ -0,0 +1,181 @@
+/**
+ *
+ *  Copyright © 2010, 2011 Inadco, Inc. All rights reserved.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ *
+ */
+package com.inadco.ecoadapters.pig;
+
+import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.filter.CompareFilter.CompareOp;
+import org.apache.hadoop.hbase.filter.RowFilter;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.pig.Expression;
+import org.apache.pig.Expression.OpType;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * what parts of pushed filters end up in the scan.
+ * 
+ * @author dmitriy
+ * 
+ */
+public class HBaseScanConstraintsTest {
+
+    private static final String   KEY = HBaseProtobufLoader.HKEY_STRING_ALIAS;
+    private static final String[] TS  = { "f::a::timestamp", "f::b::timestamp" };
+
+    @Test
+    public void testSuccessor() {
+        byte[] row = Bytes.toBytes("ab");
+        byte[] succ = HBaseScanConstraints.successor(row);
+        Assert.assertEquals(succ, new byte[] { 'a', 'b', 0 });
+        Assert.assertTrue(Bytes.compareTo(row, succ) < 0);
+        Assert.assertEquals(HBaseScanConstraints.successor(new byte[0]), new byte[] { 0 });
+    }
+
+    @Test
+    public void testPrefixStop() {
+        Assert.assertEquals(HBaseScanConstraints.prefixStop(new byte[] { 1, 2 }), new byte[] { 1, 3 });
+        Assert.assertEquals(HBaseScanConstraints.prefixStop(new byte[] { 1, (byte) 0xff }), new byte[] { 2 });
+        Assert.assertEquals(HBaseScanConstraints.prefixStop(new byte[] { 1, (byte) 0x7f }), new byte[] { 1,
+            (byte) 0x80 });
+        Assert.assertNull(HBaseScanConstraints.prefixStop(new byte[] { (byte) 0xff, (byte) 0xff }));
+        Assert.assertNull(HBaseScanConstraints.prefixStop(new byte[0]));
+    }
+
+    @Test
+    public void testLiteralPrefix() {
+        Assert.assertEquals(HBaseScanConstraints.literalPrefix("abc"), "abc");
+        Assert.assertEquals(HBaseScanConstraints.literalPrefix("abc.*"), "abc");
+        Assert.assertEquals(HBaseScanConstraints.literalPrefix("abc[0-9]+"), "abc");
+        // quantifiers allowing no occurrence drop the last literal
+        Assert.assertEquals(HBaseScanConstraints.literalPrefix("abc?"), "ab");
+        Assert.assertEquals(HBaseScanConstraints.literalPrefix("ab*c"), "a");
+        Assert.assertEquals(HBaseScanConstraints.literalPrefix("ab{0,2}"), "a");
+        Assert.assertEquals(HBaseScanConstraints.literalPrefix("a|b"), "");
+        Assert.assertEquals(HBaseScanConstraints.literalPrefix("^abc"), "");
+        Assert.assertEquals(HBaseScanConstraints.literalPrefix("\\d+"), "");
+    }
+
+    @Test
+    public void testKeyRange() throws Exception {
+        Scan scan = apply(and(op(OpType.OP_GE, col(KEY), cnst("b")), op(OpType.OP_LT, col(KEY), cnst("d"))));
+        assertRange(scan, "b", "d");
+
+        scan = apply(op(OpType.OP_EQ, col(KEY), cnst("abc")));
+        assertRange(scan, "abc", "abc\0");
+
+        // constant on the left
+        scan = apply(and(op(OpType.OP_LT, cnst("b"), col(KEY)), op(OpType.OP_GE, cnst("d"), col(KEY))));
+        assertRange(scan, "b\0", "d\0");
+
+        // the tighter bound wins
+        scan = apply(and(op(OpType.OP_GT, col(KEY), cnst("a")), op(OpType.OP_GE, col(KEY), cnst("c"))));
+        assertRange(scan, "c", "");
+    }
+
+    @Test
+    public void testNoKeyRange() throws Exception {
+        // disjunctions are left to the loader
+        Scan scan = apply(new Expression.BinaryExpression(op(OpType.OP_LT, col(KEY), cnst("b")),
+                                                          op(OpType.OP_GT, col(KEY), cnst("d")),
+                                                          OpType.OP_OR));
+        assertRange(scan, "", "");
+        Assert.assertNull(scan.getFilter());
+
+        // contradicting bounds too
+        scan = apply(and(op(OpType.OP_GE, col(KEY), cnst("d")), op(OpType.OP_LT, col(KEY), cnst("b"))));
+        assertRange(scan, "", "");
+
+        // so are other columns and non-constant operands
+        scan = apply(and(op(OpType.OP_GE, col("f::a"), cnst("d")), op(OpType.OP_LT, col(KEY), col(KEY))));
+        assertRange(scan, "", "");
+    }
+
+    @Test
+    public void testScanRangeKept() throws Exception {
+        Scan scan = new Scan(Bytes.toBytes("c"), Bytes.toBytes("e"));
+        new HBaseScanConstraints(and(op(OpType.OP_GE, col(KEY), cnst("b")), op(OpType.OP_LT, col(KEY), cnst("d"))),
+                                 KEY,
+                                 TS).apply(scan, null);
+        assertRange(scan, "c", "d");
+    }
+
+    @Test
+    public void testExcludedRow() throws Exception {
+        Scan scan = apply(op(OpType.OP_NE, col(KEY), cnst("x")));
+        assertRange(scan, "", "");
+        RowFilter filter = (RowFilter) scan.getFilter();
+        Assert.assertEquals(filter.getOperator(), CompareOp.NOT_EQUAL);
+        Assert.assertEquals(filter.getComparator().getValue(), Bytes.toBytes("x"));
+    }
+
+    @Test
+    public void testTimeRange() throws Exception {
+        Expression bounds = and(op(OpType.OP_GE, col(TS[0]), cnst(100L)), op(OpType.OP_GT, col(TS[1]), cnst(200.5)));
+        Scan scan = apply(bounds);
+        Assert.assertEquals(scan.getTimeRange().getMin(), 100L);
+        Assert.assertEquals(scan.getTimeRange().getMax(), Long.MAX_VALUE);
+
+        scan = new Scan();
+        new HBaseScanConstraints(bounds, KEY, TS).apply(scan, new boolean[] { false, true });
+        Assert.assertEquals(scan.getTimeRange().getMin(), 201L);
+
+        // an unbounded column fetched keeps all of the time range
+        scan = apply(op(OpType.OP_GE, col(TS[0]), cnst(100)));
+        Assert.assertEquals(scan.getTimeRange().getMin(), 0L);
+        scan = new Scan();
+        new HBaseScanConstraints(op(OpType.OP_GE, col(TS[0]), cnst(100)), KEY, TS).apply(scan, new boolean[] {
+            true, false });
+        Assert.assertEquals(scan.getTimeRange().getMin(), 100L);
+
+        // upper bounds would bring older versions up
+        scan = apply(and(op(OpType.OP_LT, col(TS[0]), cnst(100L)), op(OpType.OP_LT, col(TS[1]), cnst(100L))));
+        Assert.assertEquals(scan.getTimeRange().getMin(), 0L);
+        Assert.assertEquals(scan.getTimeRange().getMax(), Long.MAX_VALUE);
+    }
+
+    private static Scan apply(Expression expr) throws Exception {
+        Scan scan = new Scan();
+        new HBaseScanConstraints(expr, KEY, TS).apply(scan, null);
+        return scan;
+    }
+
+    private static void assertRange(Scan scan, String start, String stop) {
+        Assert.assertEquals(scan.getStartRow(), start.length() == 0 ? HConstants.EMPTY_START_ROW : Bytes
+            .toBytes(start));
+        Assert.assertEquals(scan.getStopRow(), stop.length() == 0 ? HConstants.EMPTY_END_ROW : Bytes.toBytes(stop));
+    }
+
+    private static Expression and(Expression lhs, Expression rhs) {
+        return op(OpType.OP_AND, lhs, rhs);
+    }
+
+    private static Expression op(OpType op, Expression lhs, Expression rhs) {
+        return new Expression.BinaryExpression(lhs, rhs, op);
+    }
+
+    private static Expression col(String name) {
+        return new Expression.Column(name);
+    }
+
+    private static Expression cnst(Object value) {
+        return new Expression.Const(value);
+    }
+
+}
@@ -0,0 +1,183 @@
+/**
+ *
+ *  Copyright © 2010, 2011 Inadco, Inc. All rights reserved.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ *
+ */
+package com.inadco.ecoadapters.pig;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.hadoop.io.Text;
+import org.apache.pig.data.DataByteArray;
+import org.apache.pig.data.DataType;
+import org.apache.pig.data.Tuple;
+import org.apache.pig.data.TupleFactory;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.google.protobuf.DescriptorProtos.DescriptorProto;
+import com.google.protobuf.DescriptorProtos.EnumDescriptorProto;
+import com.google.protobuf.DescriptorProtos.EnumValueDescriptorProto;
+import com.google.protobuf.DescriptorProtos.FieldDescriptorProto;
+import com.google.protobuf.DescriptorProtos.FileDescriptorProto;
+import com.google.protobuf.Descriptors.Descriptor;
+import com.google.protobuf.Descriptors.FieldDescriptor;
+import com.google.protobuf.Descriptors.FileDescriptor;
+
+/**
+ * keys made by {@link SequenceFileProtobufStorage#appendSortableKey(StringBuilder, FieldDescriptor, Object)}
+ * have to sort as {@link Text} the way pig's order by sorts the values, or
+ * -sorted output isn't sorted.
+ * 
+ * @author dmitriy
+ * 
+ */
+public class SortableKeyTest {
+
+    private static final List<Object> INTS    = Arrays.<Object> asList(Integer.MIN_VALUE, -300, -1, 0, 1, 255, 256,
+                                                                       Integer.MAX_VALUE);
+    private static final List<Object> LONGS   = Arrays.<Object> asList(Long.MIN_VALUE, -1L << 40, -1L, 0L, 1L,
+                                                                       1L << 40, Long.MAX_VALUE);
+
+    @Test
+    public void testSigned() throws Exception {
+        checkOrder("int32", INTS);
+        checkOrder("sint32", INTS);
+        checkOrder("sfixed32", INTS);
+        checkOrder("int64", LONGS);
+        checkOrder("sint64", LONGS);
+        checkOrder("sfixed64", LONGS);
+    }
+
+    @Test
+    public void testUnsigned() throws Exception {
+        // pig has them as signed ints and longs
+        checkOrder("uint32", INTS);
+        checkOrder("fixed32", INTS);
+        checkOrder("uint64", LONGS);
+        checkOrder("fixed64", LONGS);
+    }
+
+    @Test
+    public void testFloatingPoint() throws Exception {
+        checkOrder("float", Arrays.<Object> asList(Float.NEGATIVE_INFINITY, -Float.MAX_VALUE, -1.5f, -Float.MIN_VALUE,
+                                                   0f, Float.MIN_VALUE, 1f, 1.5f, Float.MAX_VALUE,
+                                                   Float.POSITIVE_INFINITY));
+        checkOrder("double", Arrays.<Object> asList(Double.NEGATIVE_INFINITY, -1e300, -1.5, -Double.MIN_VALUE, 0.0,
+                                                    Double.MIN_VALUE, 1.0, 1e300, Double.POSITIVE_INFINITY));
+    }
+
+    @Test
+    public void testOthers() throws Exception {
+        checkOrder("bool", Arrays.<Object> asList(false, true));
+        checkOrder("string", Arrays.<Object> asList("", "A", "a", "ab", "b", "é", "ф"));
+        checkOrder("bytes", Arrays.<Object> asList(new DataByteArray(new byte[0]),
+                                                   new DataByteArray(new byte[] { 0 }),
+                                                   new DataByteArray(new byte[] { 0, 0 }),
+                                                   new DataByteArray(new byte[] { 1 }),
+                                                   new DataByteArray(new byte[] { 0x7f }),
+                                                   new DataByteArray(new byte[] { (byte) 0x80 }),
+                                                   new DataByteArray(new byte[] { (byte) 0xff })));
+        checkOrder("color", Arrays.<Object> asList("BLUE", "GREEN", "RED"));
+    }
+
+    @Test
+    public void testCompositeKey() throws Exception {
+        Descriptor desc = testDescriptor();
+        FieldDescriptor[] fields = { desc.findFieldByName("string"), desc.findFieldByName("int32") };
+        TupleFactory tf = TupleFactory.getInstance();
+        List<Tuple> tuples = Arrays.asList(tf.newTuple(Arrays.<Object> asList(null, 5)),
+                                           tf.newTuple(Arrays.<Object> asList("a", -1)),
+                                           tf.newTuple(Arrays.<Object> asList("a", 2)),
+                                           tf.newTuple(Arrays.<Object> asList("ab", Integer.MIN_VALUE)),
+                                           tf.newTuple(Arrays.<Object> asList("b", 0)));
+        for (int i = 1; i < tuples.size(); i++) {
+            Assert.assertTrue(DataType.compare(tuples.get(i - 1), tuples.get(i)) < 0);
+            Assert.assertTrue(key(fields, tuples.get(i - 1)).compareTo(key(fields, tuples.get(i))) < 0,
+                              tuples.get(i - 1) + " vs " + tuples.get(i));
+        }
+    }
+
+    /**
+     * every pair of the values has to compare the same way as keys and as pig
+     * values.
+     */
+    private static void checkOrder(String field, List<Object> pigValues) throws Exception {
+        FieldDescriptor fd = testDescriptor().findFieldByName(field);
+        for (Object a : pigValues)
+            for (Object b : pigValues) {
+                int pigCmp = Integer.signum(DataType.compare(a, b));
+                int keyCmp = Integer.signum(key(fd, a).compareTo(key(fd, b)));
+                Assert.assertEquals(keyCmp, pigCmp, String.format("%s: %s vs %s", field, a, b));
+            }
+    }
+
+    private static Text key(FieldDescriptor fd, Object pigValue) throws Exception {
+        StringBuilder sb = new StringBuilder();
+        SequenceFileProtobufStorage.appendSortableKey(sb, fd, PigUtil.parseSimpleProtoType(fd, pigValue));
+        return new Text(sb.toString());
+    }
+
+    private static Text key(FieldDescriptor[] fields, Tuple tuple) throws Exception {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < fields.length; i++) {
+            if (i > 0)
+                sb.append(SequenceFileProtobufStorage.KEY_SEPARATOR);
+            SequenceFileProtobufStorage.appendSortableKey(sb,
+                                                          fields[i],
+                                                          PigUtil.parseSimpleProtoType(fields[i], tuple.get(i)));
+        }
+        return new Text(sb.toString());
+    }
+
+    private static Descriptor testDescriptor() throws Exception {
+        EnumDescriptorProto color = EnumDescriptorProto.newBuilder()
+            .setName("Color")
+            .addValue(EnumValueDescriptorProto.newBuilder().setName("RED").setNumber(1))
+            .addValue(EnumValueDescriptorProto.newBuilder().setName("GREEN").setNumber(2))
+            .addValue(EnumValueDescriptorProto.newBuilder().setName("BLUE").setNumber(3))
+            .build();
+        DescriptorProto.Builder msg = DescriptorProto.newBuilder().setName("Key").addEnumType(color);
+        FieldDescriptorProto.Type[] types = { FieldDescriptorProto.Type.TYPE_INT32,
+            FieldDescriptorProto.Type.TYPE_SINT32, FieldDescriptorProto.Type.TYPE_SFIXED32,
+            FieldDescriptorProto.Type.TYPE_UINT32, FieldDescriptorProto.Type.TYPE_FIXED32,
+            FieldDescriptorProto.Type.TYPE_INT64, FieldDescriptorProto.Type.TYPE_SINT64,
+            FieldDescriptorProto.Type.TYPE_SFIXED64, FieldDescriptorProto.Type.TYPE_UINT64,
+            FieldDescriptorProto.Type.TYPE_FIXED64, FieldDescriptorProto.Type.TYPE_FLOAT,
+            FieldDescriptorProto.Type.TYPE_DOUBLE, FieldDescriptorProto.Type.TYPE_BOOL,
+            FieldDescriptorProto.Type.TYPE_STRING, FieldDescriptorProto.Type.TYPE_BYTES };
+        for (int i = 0; i < types.length; i++)
+            msg.addField(FieldDescriptorProto.newBuilder()
+                .setName(types[i].name().substring("TYPE_".length()).toLowerCase())
+                .setNumber(i + 1)
+                .setType(types[i])
+                .setLabel(FieldDescriptorProto.Label.LABEL_OPTIONAL));
+        msg.addField(FieldDescriptorProto.newBuilder()
+            .setName("color")
+            .setNumber(types.length + 1)
+            .setType(FieldDescriptorProto.Type.TYPE_ENUM)
+            .setTypeName("Color")
+            .setLabel(FieldDescriptorProto.Label.LABEL_OPTIONAL));
+        FileDescriptorProto file = FileDescriptorProto.newBuilder()
+            .setName("sortablekey.proto")
+            .setPackage("ecoadapters.test")
+            .addMessageType(msg)
+            .build();
+        return FileDescriptor.buildFrom(file, new FileDescriptor[0]).findMessageTypeByName("Key");
+    }
+
+}
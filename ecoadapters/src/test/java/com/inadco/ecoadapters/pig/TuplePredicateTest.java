@@ -0,0 +1,161 @@
+/**
+ *
+ *  Copyright © 2010, 2011 Inadco, Inc. All rights reserved.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ *
+ */
+package com.inadco.ecoadapters.pig;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.pig.Expression;
+import org.apache.pig.Expression.OpType;
+import org.apache.pig.data.DataByteArray;
+import org.apache.pig.data.Tuple;
+import org.apache.pig.data.TupleFactory;
+import org.apache.pig.impl.util.ObjectSerializer;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * pig semantics of pushed filters: comparisons across numeric types, three
+ * valued logic with nulls, and nulls for what can't be evaluated.
+ * 
+ * @author dmitriy
+ * 
+ */
+public class TuplePredicateTest {
+
+    private static final TupleFactory TF = TupleFactory.getInstance();
+
+    @Test
+    public void testComparisons() throws Exception {
+        // int column against long constant and the other way around
+        Assert.assertTrue(accept(op(OpType.OP_EQ, col("a"), cnst(5L)), 5));
+        Assert.assertTrue(accept(op(OpType.OP_LT, col("a"), cnst(6)), 5L));
+        Assert.assertFalse(accept(op(OpType.OP_GT, col("a"), cnst(5)), 5L));
+        Assert.assertTrue(accept(op(OpType.OP_GE, col("a"), cnst(5)), 5L));
+        Assert.assertTrue(accept(op(OpType.OP_LE, col("a"), cnst(4.5)), 4));
+        Assert.assertTrue(accept(op(OpType.OP_NE, col("a"), cnst(0.5f)), 1.0));
+        // long compare is exact where doubles would round
+        Assert.assertTrue(accept(op(OpType.OP_GT, col("a"), cnst(Long.MAX_VALUE - 1)), Long.MAX_VALUE));
+
+        Assert.assertTrue(accept(op(OpType.OP_LT, col("a"), cnst("b")), "a"));
+        Assert.assertTrue(accept(op(OpType.OP_EQ, col("a"), cnst("key")), new DataByteArray("key")));
+        Assert.assertTrue(accept(op(OpType.OP_GT, col("a"), cnst("a")), new DataByteArray("b")));
+        Assert.assertTrue(accept(op(OpType.OP_EQ, col("a"), cnst(true)), true));
+    }
+
+    @Test
+    public void testIncomparable() throws Exception {
+        TuplePredicate eq = compile(op(OpType.OP_EQ, col("a"), cnst("5")));
+        Assert.assertNull(eq.eval(TF.newTuple(Arrays.<Object> asList(5L))));
+        TuplePredicate ne = compile(op(OpType.OP_NE, col("a"), cnst("5")));
+        Assert.assertNull(ne.eval(TF.newTuple(Arrays.<Object> asList(5L))));
+        Assert.assertFalse(ne.accept(TF.newTuple(Arrays.<Object> asList(5L))));
+    }
+
+    @Test
+    public void testNulls() throws Exception {
+        // neither a == 1 nor a != 1 passes a null
+        Assert.assertFalse(accept(op(OpType.OP_EQ, col("a"), cnst(1)), (Object) null));
+        Assert.assertFalse(accept(op(OpType.OP_NE, col("a"), cnst(1)), (Object) null));
+        Assert.assertFalse(accept(op(OpType.OP_EQ, col("a"), cnst(null)), 1));
+
+        Expression aIs1 = op(OpType.OP_EQ, col("a"), cnst(1));
+        Expression bIs2 = op(OpType.OP_EQ, col("b"), cnst(2));
+        TuplePredicate or = compile(op(OpType.OP_OR, aIs1, bIs2));
+        Assert.assertEquals(or.eval(tuple(null, 2)), Boolean.TRUE);
+        Assert.assertEquals(or.eval(tuple(1, null)), Boolean.TRUE);
+        Assert.assertNull(or.eval(tuple(null, 3)));
+        Assert.assertEquals(or.eval(tuple(0, 3)), Boolean.FALSE);
+
+        TuplePredicate and = compile(op(OpType.OP_AND, aIs1, bIs2));
+        Assert.assertEquals(and.eval(tuple(null, 3)), Boolean.FALSE);
+        Assert.assertEquals(and.eval(tuple(0, null)), Boolean.FALSE);
+        Assert.assertNull(and.eval(tuple(1, null)));
+        Assert.assertEquals(and.eval(tuple(1, 2)), Boolean.TRUE);
+    }
+
+    @Test
+    public void testArithmetic() throws Exception {
+        Assert.assertTrue(accept(op(OpType.OP_EQ, op(OpType.OP_PLUS, col("a"), cnst(1)), cnst(3L)), 2));
+        Assert.assertTrue(accept(op(OpType.OP_EQ, op(OpType.OP_DIV, col("a"), cnst(2)), cnst(3)), 7L));
+        Assert.assertTrue(accept(op(OpType.OP_EQ, op(OpType.OP_DIV, col("a"), cnst(2)), cnst(3.5)), 7.0));
+        Assert.assertTrue(accept(op(OpType.OP_EQ, op(OpType.OP_MOD, col("a"), cnst(3)), cnst(1)), 7));
+        Assert.assertTrue(accept(op(OpType.OP_LT, op(OpType.OP_MINUS, col("a"), cnst(1)), cnst(0)), 0));
+        Assert.assertTrue(accept(op(OpType.OP_EQ, op(OpType.OP_TIMES, col("a"), cnst(3)), cnst(6)), 2));
+
+        // division by zero and non-numeric operands yield null
+        TuplePredicate div = compile(op(OpType.OP_EQ, op(OpType.OP_DIV, col("a"), cnst(0)), cnst(0)));
+        Assert.assertNull(div.eval(TF.newTuple(Arrays.<Object> asList(1))));
+        TuplePredicate plus = compile(op(OpType.OP_EQ, op(OpType.OP_PLUS, col("a"), cnst(1)), cnst(2)));
+        Assert.assertNull(plus.eval(TF.newTuple(Arrays.<Object> asList("1"))));
+    }
+
+    @Test
+    public void testColumns() throws Exception {
+        List<String> columns = new ArrayList<String>();
+        TuplePredicate filter = TuplePredicate.compile(op(OpType.OP_AND,
+                                                          op(OpType.OP_GT, col("b"), col("a")),
+                                                          op(OpType.OP_NE, col("b"), cnst(0))),
+                                                       columns);
+        Assert.assertEquals(columns, Arrays.asList("b", "a"));
+        Assert.assertTrue(filter.accept(tuple(2, 1)));
+
+        // a at 0, b at 2 of wider tuples
+        TuplePredicate placed = filter.withColumns(new int[] { 2, 0 });
+        Assert.assertTrue(placed.accept(tuple(1, null, 2)));
+        Assert.assertFalse(placed.accept(tuple(2, null, 1)));
+
+        // travels thru the udf context
+        TuplePredicate copy = (TuplePredicate) ObjectSerializer.deserialize(ObjectSerializer.serialize(placed));
+        Assert.assertTrue(copy.accept(tuple(1, null, 2)));
+    }
+
+    @Test(expectedExceptions = IOException.class)
+    public void testUnsupportedConst() throws Exception {
+        // constants have to be serializable to reach the backend
+        compile(op(OpType.OP_EQ, col("a"), cnst(new Object())));
+    }
+
+    private static boolean accept(Expression expr, Object... values) throws Exception {
+        return compile(expr).accept(tuple(values));
+    }
+
+    private static TuplePredicate compile(Expression expr) throws IOException {
+        return TuplePredicate.compile(expr, new ArrayList<String>());
+    }
+
+    private static Tuple tuple(Object... values) {
+        return TF.newTuple(Arrays.asList(values));
+    }
+
+    private static Expression op(OpType op, Expression lhs, Expression rhs) {
+        return new Expression.BinaryExpression(lhs, rhs, op);
+    }
+
+    private static Expression col(String name) {
+        return new Expression.Column(name);
+    }
+
+    private static Expression cnst(Object value) {
+        return new Expression.Const(value);
+    }
+
+}
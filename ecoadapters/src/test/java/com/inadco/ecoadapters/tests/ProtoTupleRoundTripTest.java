@@ -0,0 +1,232 @@
+/**
+ *
+ *  Copyright © 2010, 2011 Inadco, Inc. All rights reserved.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ *
+ */
+package com.inadco.ecoadapters.tests;
+
+import java.util.Arrays;
+
+import org.apache.pig.data.DataType;
+import org.apache.pig.data.Tuple;
+import org.apache.pig.data.TupleFactory;
+import org.apache.pig.impl.logicalLayer.schema.Schema;
+import org.apache.pig.impl.logicalLayer.schema.Schema.FieldSchema;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.DescriptorProtos.DescriptorProto;
+import com.google.protobuf.DescriptorProtos.EnumDescriptorProto;
+import com.google.protobuf.DescriptorProtos.EnumValueDescriptorProto;
+import com.google.protobuf.DescriptorProtos.FieldDescriptorProto;
+import com.google.protobuf.DescriptorProtos.FieldOptions;
+import com.google.protobuf.DescriptorProtos.FileDescriptorProto;
+import com.google.protobuf.Descriptors.Descriptor;
+import com.google.protobuf.Descriptors.FileDescriptor;
+import com.google.protobuf.DynamicMessage;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.inadco.ecoadapters.pig.Pig2Proto;
+import com.inadco.ecoadapters.pig.PigUtil;
+import com.inadco.ecoadapters.pig.PigUtil.Proto2TupleMap;
+import com.inadco.ecoadapters.pig.ProtoTupleReader;
+import com.inadco.ecoadapters.pig.ProtoTupleWriter;
+
+/**
+ * checks the compiled wire paths against the DynamicMessage based
+ * conversions they replace: {@link ProtoTupleWriter} has to produce the same
+ * bytes as {@link DynamicMessage#toByteArray()} and {@link ProtoTupleReader}
+ * the same tuples as {@link PigUtil#protoMessage2PigTuple}. Same for
+ * {@link Pig2Proto}, which encodes with the writer.
+ * 
+ * @author dmitriy
+ * 
+ */
+public class ProtoTupleRoundTripTest {
+
+    private static final TupleFactory TF = TupleFactory.getInstance();
+
+    @Test
+    public void testFullMessage() throws Exception {
+        Descriptor desc = testDescriptor();
+        Descriptor innerDesc = desc.findNestedTypeByName("Inner");
+        DynamicMessage inner1 = DynamicMessage.newBuilder(innerDesc)
+            .setField(innerDesc.findFieldByName("a"), 42)
+            .setField(innerDesc.findFieldByName("s"), "inner")
+            .addRepeatedField(innerDesc.findFieldByName("r"), 1L)
+            .addRepeatedField(innerDesc.findFieldByName("r"), -1L)
+            .build();
+        DynamicMessage inner2 = DynamicMessage.newBuilder(innerDesc)
+            .setField(innerDesc.findFieldByName("a"), -7)
+            .build();
+
+        DynamicMessage msg = DynamicMessage.newBuilder(desc)
+            .setField(desc.findFieldByName("i32"), -5)
+            .setField(desc.findFieldByName("s64"), Long.MIN_VALUE)
+            .setField(desc.findFieldByName("d"), 3.25)
+            .setField(desc.findFieldByName("f"), -0.5f)
+            .setField(desc.findFieldByName("b"), true)
+            .setField(desc.findFieldByName("str"), "unicode \u0444\u044b\u0432")
+            .setField(desc.findFieldByName("bin"), ByteString.copyFrom(new byte[] { 0, 1, (byte) 0xff }))
+            .setField(desc.findFieldByName("color"),
+                      desc.findEnumTypeByName("Color").findValueByName("GREEN"))
+            .addRepeatedField(desc.findFieldByName("packed"), 1)
+            .addRepeatedField(desc.findFieldByName("packed"), -300)
+            .addRepeatedField(desc.findFieldByName("strs"), "a")
+            .addRepeatedField(desc.findFieldByName("strs"), "")
+            .addRepeatedField(desc.findFieldByName("doubles"), 1e100)
+            .setField(desc.findFieldByName("inner"), inner1)
+            .addRepeatedField(desc.findFieldByName("inners"), inner1)
+            .addRepeatedField(desc.findFieldByName("inners"), inner2)
+            .setField(desc.findFieldByName("fx"), -1L)
+            .build();
+
+        roundTrip(msg);
+    }
+
+    @Test
+    public void testSparseMessage() throws Exception {
+        Descriptor desc = testDescriptor();
+        DynamicMessage msg = DynamicMessage.newBuilder(desc)
+            .setField(desc.findFieldByName("i32"), 0)
+            .build();
+        roundTrip(msg);
+    }
+
+    @Test(expectedExceptions = InvalidProtocolBufferException.class)
+    public void testEndGroup() throws Exception {
+        Descriptor desc = testDescriptor();
+        byte[] bytes = DynamicMessage.newBuilder(desc)
+            .setField(desc.findFieldByName("i32"), 1)
+            .build()
+            .toByteArray();
+        // end group tag of field 15, with no group started
+        bytes = Arrays.copyOf(bytes, bytes.length + 1);
+        bytes[bytes.length - 1] = (byte) (15 << 3 | 4);
+        ProtoTupleReader.create(PigUtil.generateProto2TupleMap(desc), TF).read(bytes, 0, bytes.length);
+    }
+
+    @Test
+    public void testPig2Proto() throws Exception {
+        Schema schema = new Schema();
+        schema.add(new FieldSchema("name", DataType.CHARARRAY));
+        schema.add(new FieldSchema("number", DataType.INTEGER));
+        Tuple input = TF.newTuple(2);
+        input.set(0, "GREEN");
+        input.set(1, 2);
+        byte[] expected = EnumValueDescriptorProto.newBuilder().setName("GREEN").setNumber(2).build().toByteArray();
+
+        String msgClass = EnumValueDescriptorProto.class.getName();
+        Pig2Proto frontend = new Pig2Proto(msgClass);
+        frontend.setUDFContextSignature("roundtrip");
+        frontend.outputSchema(schema);
+        Assert.assertEquals(frontend.exec(input), expected);
+
+        // backend instances only get the schema thru the udf context
+        Pig2Proto backend = new Pig2Proto(msgClass);
+        backend.setUDFContextSignature("roundtrip");
+        Assert.assertEquals(backend.exec(input), expected);
+    }
+
+    private static void roundTrip(DynamicMessage msg) throws Exception {
+        Descriptor desc = msg.getDescriptorForType();
+        byte[] bytes = msg.toByteArray();
+
+        Tuple expected = PigUtil.protoMessage2PigTuple(msg, desc, TF);
+        Proto2TupleMap tupleMap = PigUtil.generateProto2TupleMap(desc);
+        Tuple actual = ProtoTupleReader.create(tupleMap, TF).read(bytes, 0, bytes.length);
+        Assert.assertEquals(actual, expected);
+
+        // the same tuple filled in by two readers of every other attribute
+        boolean[] even = new boolean[tupleMap.size()], odd = new boolean[tupleMap.size()];
+        for (int i = 0; i < even.length; i++)
+            even[i] = !(odd[i] = (i & 1) != 0);
+        actual = ProtoTupleReader.create(tupleMap, TF, even).read(bytes, 0, bytes.length);
+        ProtoTupleReader.create(tupleMap, TF, odd).mergeFrom(bytes, 0, bytes.length, actual);
+        Assert.assertEquals(actual, expected);
+
+        Schema schema = bagsOfTuples(PigUtil.generatePigSchemaFromProto(desc));
+        ProtoTupleWriter writer = ProtoTupleWriter.create(PigUtil.generatePigTuple2ProtoMap(schema, desc));
+        Assert.assertEquals(writer.toByteArray(expected, 0, expected.size()), bytes);
+    }
+
+    /**
+     * the generated schema has message schemas right in the bags, whereas
+     * pig (and the tuple to proto mapping) has a single tuple in bags.
+     */
+    private static Schema bagsOfTuples(Schema schema) throws Exception {
+        for (FieldSchema fs : schema.getFields()) {
+            if (fs.schema == null)
+                continue;
+            bagsOfTuples(fs.schema);
+            // message schemas have the error attribute, so more than one field
+            if (fs.type == DataType.BAG && fs.schema.size() > 1)
+                fs.schema = new Schema(new FieldSchema(null, fs.schema, DataType.TUPLE));
+        }
+        return schema;
+    }
+
+    private static Descriptor testDescriptor() throws Exception {
+        DescriptorProto inner = DescriptorProto.newBuilder()
+            .setName("Inner")
+            .addField(field("a", 1, FieldDescriptorProto.Type.TYPE_INT32, false))
+            .addField(field("s", 2, FieldDescriptorProto.Type.TYPE_STRING, false))
+            .addField(field("r", 3, FieldDescriptorProto.Type.TYPE_SINT64, true))
+            .build();
+        EnumDescriptorProto color = EnumDescriptorProto.newBuilder()
+            .setName("Color")
+            .addValue(EnumValueDescriptorProto.newBuilder().setName("RED").setNumber(1))
+            .addValue(EnumValueDescriptorProto.newBuilder().setName("GREEN").setNumber(2))
+            .build();
+        DescriptorProto outer = DescriptorProto.newBuilder()
+            .setName("Outer")
+            .addNestedType(inner)
+            .addEnumType(color)
+            .addField(field("i32", 1, FieldDescriptorProto.Type.TYPE_INT32, false)
+                .setLabel(FieldDescriptorProto.Label.LABEL_REQUIRED))
+            .addField(field("s64", 2, FieldDescriptorProto.Type.TYPE_SINT64, false))
+            .addField(field("d", 3, FieldDescriptorProto.Type.TYPE_DOUBLE, false))
+            .addField(field("f", 4, FieldDescriptorProto.Type.TYPE_FLOAT, false))
+            .addField(field("b", 5, FieldDescriptorProto.Type.TYPE_BOOL, false))
+            .addField(field("str", 6, FieldDescriptorProto.Type.TYPE_STRING, false))
+            .addField(field("bin", 7, FieldDescriptorProto.Type.TYPE_BYTES, false))
+            .addField(field("color", 8, FieldDescriptorProto.Type.TYPE_ENUM, false).setTypeName("Color"))
+            .addField(field("packed", 9, FieldDescriptorProto.Type.TYPE_INT32, true)
+                .setOptions(FieldOptions.newBuilder().setPacked(true)))
+            .addField(field("strs", 10, FieldDescriptorProto.Type.TYPE_STRING, true))
+            .addField(field("doubles", 11, FieldDescriptorProto.Type.TYPE_DOUBLE, true))
+            .addField(field("inner", 12, FieldDescriptorProto.Type.TYPE_MESSAGE, false).setTypeName("Inner"))
+            .addField(field("inners", 13, FieldDescriptorProto.Type.TYPE_MESSAGE, true).setTypeName("Inner"))
+            .addField(field("fx", 200, FieldDescriptorProto.Type.TYPE_FIXED64, false))
+            .build();
+        FileDescriptorProto file = FileDescriptorProto.newBuilder()
+            .setName("roundtrip.proto")
+            .setPackage("ecoadapters.test")
+            .addMessageType(outer)
+            .build();
+        return FileDescriptor.buildFrom(file, new FileDescriptor[0]).findMessageTypeByName("Outer");
+    }
+
+    private static FieldDescriptorProto.Builder field(String name, int number, FieldDescriptorProto.Type type,
+        boolean repeated) {
+        return FieldDescriptorProto.newBuilder()
+            .setName(name)
+            .setNumber(number)
+            .setType(type)
+            .setLabel(repeated ? FieldDescriptorProto.Label.LABEL_REPEATED : FieldDescriptorProto.Label.LABEL_OPTIONAL);
+    }
+
+}
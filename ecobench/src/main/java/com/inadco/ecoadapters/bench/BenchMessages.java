@@ -0,0 +1,269 @@
+/**
+ *
+ *  Copyright © 2010, 2011 Inadco, Inc. All rights reserved.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ *
+ */
+package com.inadco.ecoadapters.bench;
+
+import java.util.Random;
+
+import org.apache.pig.PigException;
+import org.apache.pig.data.DataType;
+import org.apache.pig.impl.logicalLayer.schema.Schema;
+import org.apache.pig.impl.logicalLayer.schema.Schema.FieldSchema;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.DescriptorProtos.DescriptorProto;
+import com.google.protobuf.DescriptorProtos.EnumDescriptorProto;
+import com.google.protobuf.DescriptorProtos.EnumValueDescriptorProto;
+import com.google.protobuf.DescriptorProtos.FieldDescriptorProto;
+import com.google.protobuf.DescriptorProtos.FieldOptions;
+import com.google.protobuf.DescriptorProtos.FileDescriptorProto;
+import com.google.protobuf.DescriptorProtos.FileDescriptorSet;
+import com.google.protobuf.Descriptors.Descriptor;
+import com.google.protobuf.Descriptors.DescriptorValidationException;
+import com.google.protobuf.Descriptors.FieldDescriptor;
+import com.google.protobuf.Descriptors.FileDescriptor;
+import com.google.protobuf.DynamicMessage;
+import com.google.protobuf.Message;
+import com.inadco.ecoadapters.pig.PigUtil;
+
+/**
+ * Synthetic message shapes the benchmarks run over, built as descriptors
+ * (so no protoc is needed) along with deterministic random sample messages.
+ * <P>
+ * 
+ * <ul>
+ * <li>narrow: a handful of scalars;</li>
+ * <li>wide: 300 scalar fields of mixed types, including enums and bytes;</li>
+ * <li>nested: messages nested {@link #NESTING_DEPTH} levels deep;</li>
+ * <li>repeated: mostly repeated fields, packed and not, including repeated
+ * messages.</li>
+ * </ul>
+ * 
+ * @author dmitriy
+ * 
+ */
+public final class BenchMessages {
+
+    public static final String  NARROW          = "narrow";
+    public static final String  WIDE            = "wide";
+    public static final String  NESTED          = "nested";
+    public static final String  REPEATED        = "repeated";
+
+    public static final int     WIDE_FIELDS     = 300;
+    public static final int     NESTING_DEPTH   = 8;
+    public static final int     REPEATED_COUNT  = 50;
+    // benchmarks cycle through this many different sample messages
+    public static final int     SAMPLES         = 256;
+
+    private static final String PACKAGE         = "ecobench";
+    private static final long   SEED            = 0x5eedL;
+
+    private static final FieldDescriptorProto.Type[] WIDE_TYPES = {
+        FieldDescriptorProto.Type.TYPE_INT64, FieldDescriptorProto.Type.TYPE_STRING,
+        FieldDescriptorProto.Type.TYPE_INT32, FieldDescriptorProto.Type.TYPE_DOUBLE,
+        FieldDescriptorProto.Type.TYPE_BOOL, FieldDescriptorProto.Type.TYPE_ENUM,
+        FieldDescriptorProto.Type.TYPE_FIXED64, FieldDescriptorProto.Type.TYPE_FLOAT,
+        FieldDescriptorProto.Type.TYPE_SINT32, FieldDescriptorProto.Type.TYPE_BYTES };
+
+    private static FileDescriptorSet  s_fileDescSet;
+    private static FileDescriptor     s_fileDesc;
+
+    private BenchMessages() {
+    }
+
+    /**
+     * @return the descriptor set file content with all the shapes, e.g. to
+     *         benchmark descriptor loading.
+     */
+    public static synchronized FileDescriptorSet getFileDescriptorSet() {
+        if (s_fileDescSet == null)
+            s_fileDescSet = FileDescriptorSet.newBuilder().addFile(buildFileProto()).build();
+        return s_fileDescSet;
+    }
+
+    public static synchronized Descriptor getDescriptor(String shape) throws DescriptorValidationException {
+        if (s_fileDesc == null)
+            s_fileDesc = FileDescriptor.buildFrom(getFileDescriptorSet().getFile(0), new FileDescriptor[0]);
+        Descriptor desc = s_fileDesc.findMessageTypeByName(msgName(shape));
+        if (desc == null)
+            throw new IllegalArgumentException("Unknown message shape: " + shape);
+        return desc;
+    }
+
+    /**
+     * @return full name of the message for the shape, as in the "msg" query
+     *         parameter of descriptor uris.
+     */
+    public static String getFullName(String shape) {
+        return PACKAGE + "." + msgName(shape);
+    }
+
+    /**
+     * @return n different sample messages of the shape, same for every run.
+     */
+    public static Message[] sampleMessages(String shape, int n) throws DescriptorValidationException {
+        Descriptor desc = getDescriptor(shape);
+        Random rnd = new Random(SEED);
+        Message[] msgs = new Message[n];
+        for (int i = 0; i < n; i++)
+            msgs[i] = fill(desc, rnd, 0);
+        return msgs;
+    }
+
+    /**
+     * @return pig schema of the message the way pig would describe the
+     *         tuples to a store func: unlike in
+     *         {@link PigUtil#generatePigSchemaFromProto(Descriptor)}, bags of
+     *         messages hold a single tuple field.
+     */
+    public static Schema getStoreSchema(Descriptor desc) throws PigException {
+        return wrapBagTuples(PigUtil.generatePigSchemaFromProto(desc));
+    }
+
+    private static Schema wrapBagTuples(Schema schema) throws PigException {
+        for (FieldSchema fs : schema.getFields()) {
+            if (fs.schema == null)
+                continue;
+            wrapBagTuples(fs.schema);
+            // message schemas have the error attribute, so more than one field
+            if (fs.type == DataType.BAG && fs.schema.size() > 1)
+                fs.schema = new Schema(new FieldSchema(null, fs.schema, DataType.TUPLE));
+        }
+        return schema;
+    }
+
+    private static String msgName(String shape) {
+        return Character.toUpperCase(shape.charAt(0)) + shape.substring(1) + "Msg";
+    }
+
+    private static Message fill(Descriptor desc, Random rnd, int depth) {
+        DynamicMessage.Builder b = DynamicMessage.newBuilder(desc);
+        for (FieldDescriptor fd : desc.getFields()) {
+            if (fd.getType() == FieldDescriptor.Type.MESSAGE) {
+                // stop at the bottom of the nesting
+                if (depth >= NESTING_DEPTH)
+                    continue;
+                if (fd.isRepeated())
+                    for (int i = 0; i < REPEATED_COUNT; i++)
+                        b.addRepeatedField(fd, fill(fd.getMessageType(), rnd, depth + 1));
+                else
+                    b.setField(fd, fill(fd.getMessageType(), rnd, depth + 1));
+            } else if (fd.isRepeated())
+                for (int i = 0; i < REPEATED_COUNT; i++)
+                    b.addRepeatedField(fd, randomValue(fd, rnd));
+            else
+                b.setField(fd, randomValue(fd, rnd));
+        }
+        return b.build();
+    }
+
+    private static Object randomValue(FieldDescriptor fd, Random rnd) {
+        switch (fd.getType()) {
+        case INT64:
+        case FIXED64:
+            return rnd.nextLong() >>> rnd.nextInt(64);
+        case INT32:
+        case SINT32:
+            return rnd.nextInt() >> rnd.nextInt(32);
+        case DOUBLE:
+            return rnd.nextDouble();
+        case FLOAT:
+            return rnd.nextFloat();
+        case BOOL:
+            return rnd.nextBoolean();
+        case STRING:
+            return Long.toString(rnd.nextLong(), 36);
+        case BYTES:
+            byte[] bytes = new byte[16];
+            rnd.nextBytes(bytes);
+            return ByteString.copyFrom(bytes);
+        case ENUM:
+            return fd.getEnumType().getValues().get(rnd.nextInt(fd.getEnumType().getValues().size()));
+        default:
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    private static FileDescriptorProto buildFileProto() {
+        FileDescriptorProto.Builder file = FileDescriptorProto.newBuilder().setName("ecobench.proto")
+            .setPackage(PACKAGE);
+
+        file.addEnumType(EnumDescriptorProto.newBuilder().setName("Color")
+            .addValue(EnumValueDescriptorProto.newBuilder().setName("RED").setNumber(0))
+            .addValue(EnumValueDescriptorProto.newBuilder().setName("GREEN").setNumber(1))
+            .addValue(EnumValueDescriptorProto.newBuilder().setName("BLUE").setNumber(2)));
+
+        // narrow
+        DescriptorProto.Builder narrow = DescriptorProto.newBuilder().setName(msgName(NARROW));
+        field(narrow, "id", 1, FieldDescriptorProto.Type.TYPE_INT64, false);
+        field(narrow, "name", 2, FieldDescriptorProto.Type.TYPE_STRING, false);
+        field(narrow, "score", 3, FieldDescriptorProto.Type.TYPE_DOUBLE, false);
+        field(narrow, "flag", 4, FieldDescriptorProto.Type.TYPE_BOOL, false);
+        file.addMessageType(narrow);
+
+        // wide
+        DescriptorProto.Builder wide = DescriptorProto.newBuilder().setName(msgName(WIDE));
+        for (int i = 0; i < WIDE_FIELDS; i++)
+            field(wide, "f" + i, i + 1, WIDE_TYPES[i % WIDE_TYPES.length], false);
+        file.addMessageType(wide);
+
+        // nested: each level has a couple of scalars and the next level
+        for (int level = NESTING_DEPTH; level >= 0; level--) {
+            DescriptorProto.Builder nested = DescriptorProto.newBuilder()
+                .setName(level == 0 ? msgName(NESTED) : "NestedLevel" + level);
+            field(nested, "id", 1, FieldDescriptorProto.Type.TYPE_INT64, false);
+            field(nested, "tag", 2, FieldDescriptorProto.Type.TYPE_STRING, false);
+            if (level < NESTING_DEPTH)
+                field(nested, "child", 3, FieldDescriptorProto.Type.TYPE_MESSAGE, false)
+                    .setTypeName("." + PACKAGE + ".NestedLevel" + (level + 1));
+            file.addMessageType(nested);
+        }
+
+        // repeated
+        DescriptorProto.Builder item = DescriptorProto.newBuilder().setName("RepeatedItem");
+        field(item, "key", 1, FieldDescriptorProto.Type.TYPE_INT32, false);
+        field(item, "value", 2, FieldDescriptorProto.Type.TYPE_STRING, false);
+        file.addMessageType(item);
+
+        DescriptorProto.Builder repeated = DescriptorProto.newBuilder().setName(msgName(REPEATED));
+        field(repeated, "id", 1, FieldDescriptorProto.Type.TYPE_INT64, false);
+        field(repeated, "counts", 2, FieldDescriptorProto.Type.TYPE_INT64, true);
+        field(repeated, "packedCounts", 3, FieldDescriptorProto.Type.TYPE_INT32, true).setOptions(FieldOptions
+            .newBuilder().setPacked(true));
+        field(repeated, "weights", 4, FieldDescriptorProto.Type.TYPE_DOUBLE, true);
+        field(repeated, "tags", 5, FieldDescriptorProto.Type.TYPE_STRING, true);
+        field(repeated, "items", 6, FieldDescriptorProto.Type.TYPE_MESSAGE, true).setTypeName("." + PACKAGE
+            + ".RepeatedItem");
+        file.addMessageType(repeated);
+
+        return file.build();
+    }
+
+    private static FieldDescriptorProto.Builder field(DescriptorProto.Builder msg,
+                                                      String name,
+                                                      int number,
+                                                      FieldDescriptorProto.Type type,
+                                                      boolean repeated) {
+        FieldDescriptorProto.Builder fd = msg.addFieldBuilder().setName(name).setNumber(number).setType(type)
+            .setLabel(repeated ? FieldDescriptorProto.Label.LABEL_REPEATED : FieldDescriptorProto.Label.LABEL_OPTIONAL);
+        if (type == FieldDescriptorProto.Type.TYPE_ENUM)
+            fd.setTypeName("." + PACKAGE + ".Color");
+        return fd;
+    }
+
+}
@@ -0,0 +1,71 @@
+/**
+ *
+ *  Copyright © 2010, 2011 Inadco, Inc. All rights reserved.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ *
+ */
+package com.inadco.ecoadapters.bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.util.Map;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import com.google.protobuf.Descriptors.Descriptor;
+import com.inadco.ecoadapters.EcoUtil;
+
+/**
+ * {@link EcoUtil} descriptor loading, from a descriptor set file (what every
+ * udf and serde instance does, cached jvm-wide) and from a stream (always
+ * parsed and built from scratch).
+ * 
+ * @author dmitriy
+ * 
+ */
+@State(Scope.Thread)
+public class DescriptorLoadingBenchmark {
+
+    private File   m_descFile;
+    private String m_descUri;
+    private byte[] m_descBytes;
+
+    @Setup
+    public void setup() throws Exception {
+        m_descFile = HiveSerDeBenchmark.writeDescriptorSet();
+        m_descUri = HiveSerDeBenchmark.descriptorUri(m_descFile, BenchMessages.WIDE);
+        m_descBytes = BenchMessages.getFileDescriptorSet().toByteArray();
+    }
+
+    @TearDown
+    public void tearDown() {
+        m_descFile.delete();
+    }
+
+    @Benchmark
+    public Descriptor inferDescriptorFromFilesystem() throws Exception {
+        return EcoUtil.inferDescriptorFromFilesystem(m_descUri);
+    }
+
+    @Benchmark
+    public Map<String, Descriptor> inferDescriptorsFromStream() throws Exception {
+        return EcoUtil.inferDescriptorsFromStream(new ByteArrayInputStream(m_descBytes));
+    }
+
+}
@@ -0,0 +1,171 @@
+/**
+ *
+ *  Copyright © 2010, 2011 Inadco, Inc. All rights reserved.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ *
+ */
+package com.inadco.ecoadapters.bench;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Properties;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorUtils;
+import org.apache.hadoop.hive.serde2.objectinspector.StructField;
+import org.apache.hadoop.hive.serde2.objectinspector.StructObjectInspector;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.Writable;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import com.google.protobuf.Message;
+import com.inadco.ecoadapters.hive.ProtoSerDe;
+
+/**
+ * {@link ProtoSerDe} deserialization, eager and lazy, with a query touching
+ * one column and a query touching all of them.
+ * 
+ * @author dmitriy
+ * 
+ */
+@State(Scope.Thread)
+public class HiveSerDeBenchmark {
+
+    @Param({ BenchMessages.NARROW, BenchMessages.WIDE, BenchMessages.NESTED, BenchMessages.REPEATED })
+    public String                 shape;
+
+    @Param({ "false", "true" })
+    public boolean                lazy;
+
+    private File                  m_descFile;
+    private ProtoSerDe            m_serDe;
+    private StructObjectInspector m_inspector;
+    private StructField           m_firstField;
+    private BytesWritable[]       m_values;
+    private int                   m_next;
+
+    @Setup
+    public void setup() throws Exception {
+        m_descFile = writeDescriptorSet();
+        Properties props = new Properties();
+        props.setProperty("fileDescSetUri", descriptorUri(m_descFile, shape));
+        props.setProperty("lazy", Boolean.toString(lazy));
+        m_serDe = new ProtoSerDe();
+        m_serDe.initialize(new Configuration(), props);
+        m_inspector = (StructObjectInspector) m_serDe.getObjectInspector();
+        m_firstField = m_inspector.getAllStructFieldRefs().get(0);
+
+        Message[] msgs = BenchMessages.sampleMessages(shape, BenchMessages.SAMPLES);
+        m_values = new BytesWritable[msgs.length];
+        for (int i = 0; i < msgs.length; i++)
+            m_values[i] = new BytesWritable(msgs[i].toByteArray());
+    }
+
+    @TearDown
+    public void tearDown() {
+        m_descFile.delete();
+    }
+
+    @Benchmark
+    public Object deserializeOneColumn() throws Exception {
+        Object row = m_serDe.deserialize(m_values[next()]);
+        return m_inspector.getStructFieldData(row, m_firstField);
+    }
+
+    @Benchmark
+    public List<Object> deserializeAllColumns() throws Exception {
+        Object row = m_serDe.deserialize(m_values[next()]);
+        return m_inspector.getStructFieldsDataAsList(row);
+    }
+
+    private int next() {
+        int i = m_next;
+        m_next = (i + 1) % BenchMessages.SAMPLES;
+        return i;
+    }
+
+    /**
+     * {@link ProtoSerDe#serialize(Object, ObjectInspector)} of standard hive
+     * rows. No nested shape here since serialize doesn't support non-repeated
+     * nested messages.
+     */
+    @State(Scope.Thread)
+    public static class Serialize {
+
+        @Param({ BenchMessages.NARROW, BenchMessages.WIDE, BenchMessages.REPEATED })
+        public String           shape;
+
+        private File            m_descFile;
+        private ProtoSerDe      m_serDe;
+        private ObjectInspector m_rowInspector;
+        private Object[]        m_rows;
+        private int             m_next;
+
+        @Setup
+        public void setup() throws Exception {
+            m_descFile = writeDescriptorSet();
+            Properties props = new Properties();
+            props.setProperty("fileDescSetUri", descriptorUri(m_descFile, shape));
+            m_serDe = new ProtoSerDe();
+            m_serDe.initialize(new Configuration(), props);
+            ObjectInspector serDeInspector = m_serDe.getObjectInspector();
+            m_rowInspector = ObjectInspectorUtils.getStandardObjectInspector(serDeInspector);
+
+            // rows are reused by the serde, so keep copies
+            Message[] msgs = BenchMessages.sampleMessages(shape, BenchMessages.SAMPLES);
+            m_rows = new Object[msgs.length];
+            for (int i = 0; i < msgs.length; i++)
+                m_rows[i] = ObjectInspectorUtils.copyToStandardObject(m_serDe.deserialize(new BytesWritable(msgs[i]
+                    .toByteArray())), serDeInspector);
+        }
+
+        @TearDown
+        public void tearDown() {
+            m_descFile.delete();
+        }
+
+        @Benchmark
+        public Writable serialize() throws Exception {
+            int i = m_next;
+            m_next = (i + 1) % BenchMessages.SAMPLES;
+            return m_serDe.serialize(m_rows[i], m_rowInspector);
+        }
+    }
+
+    static File writeDescriptorSet() throws IOException {
+        File file = File.createTempFile("ecobench", ".protodesc");
+        OutputStream os = new FileOutputStream(file);
+        try {
+            BenchMessages.getFileDescriptorSet().writeTo(os);
+        } finally {
+            os.close();
+        }
+        return file;
+    }
+
+    static String descriptorUri(File descFile, String shape) {
+        return descFile.toURI() + "?msg=" + BenchMessages.getFullName(shape);
+    }
+
+}
@@ -0,0 +1,117 @@
+/**
+ *
+ *  Copyright © 2010, 2011 Inadco, Inc. All rights reserved.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ *
+ */
+package com.inadco.ecoadapters.bench;
+
+import org.apache.pig.data.Tuple;
+import org.apache.pig.data.TupleFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.google.protobuf.Descriptors.Descriptor;
+import com.google.protobuf.DynamicMessage;
+import com.google.protobuf.Message;
+import com.inadco.ecoadapters.pig.PigUtil;
+import com.inadco.ecoadapters.pig.PigUtil.Proto2TupleMap;
+import com.inadco.ecoadapters.pig.PigUtil.Tuple2ProtoMap;
+import com.inadco.ecoadapters.pig.ProtoTupleReader;
+
+/**
+ * Pig conversions: protobuf to pig tuples (interpreted, compiled and straight
+ * from the wire) and back.
+ * 
+ * @author dmitriy
+ * 
+ */
+@State(Scope.Thread)
+public class PigConversionBenchmark {
+
+    @Param({ BenchMessages.NARROW, BenchMessages.WIDE, BenchMessages.NESTED, BenchMessages.REPEATED })
+    public String            shape;
+
+    private Descriptor       m_desc;
+    private Message[]        m_msgs;
+    private byte[][]         m_msgBytes;
+    private Tuple[]          m_tuples;
+    private TupleFactory     m_tupleFactory;
+    private Proto2TupleMap   m_proto2TupleMap;
+    private ProtoTupleReader m_tupleReader;
+    private Tuple2ProtoMap   m_tuple2ProtoMap;
+    private int              m_next;
+
+    @Setup
+    public void setup() throws Exception {
+        m_desc = BenchMessages.getDescriptor(shape);
+        m_msgs = BenchMessages.sampleMessages(shape, BenchMessages.SAMPLES);
+        m_tupleFactory = TupleFactory.getInstance();
+        m_proto2TupleMap = PigUtil.generateProto2TupleMap(m_desc);
+        m_tupleReader = ProtoTupleReader.create(m_proto2TupleMap, m_tupleFactory);
+        m_tuple2ProtoMap = PigUtil.generatePigTuple2ProtoMap(BenchMessages.getStoreSchema(m_desc), m_desc);
+
+        m_msgBytes = new byte[m_msgs.length][];
+        m_tuples = new Tuple[m_msgs.length];
+        for (int i = 0; i < m_msgs.length; i++) {
+            m_msgBytes[i] = m_msgs[i].toByteArray();
+            m_tuples[i] = PigUtil.protoMessage2PigTuple(m_msgs[i], m_desc, m_tupleFactory);
+        }
+    }
+
+    @Benchmark
+    public Tuple protoMessage2PigTuple() {
+        return PigUtil.protoMessage2PigTuple(m_msgs[next()], m_desc, m_tupleFactory);
+    }
+
+    @Benchmark
+    public Tuple proto2TupleMap() throws Exception {
+        return m_proto2TupleMap.toPigTuple(m_msgs[next()], m_tupleFactory);
+    }
+
+    /**
+     * the way the loader used to read records: parse and convert.
+     */
+    @Benchmark
+    public Tuple parseAndConvert() throws Exception {
+        byte[] bytes = m_msgBytes[next()];
+        Message msg = DynamicMessage.newBuilder(m_desc).mergeFrom(bytes, 0, bytes.length).buildPartial();
+        return m_proto2TupleMap.toPigTuple(msg, m_tupleFactory);
+    }
+
+    @Benchmark
+    public Tuple wire2PigTuple() throws Exception {
+        byte[] bytes = m_msgBytes[next()];
+        return m_tupleReader.read(bytes, 0, bytes.length);
+    }
+
+    @Benchmark
+    public Message pigTuple2ProtoMessage() throws Exception {
+        Tuple tuple = m_tuples[next()];
+        Message.Builder builder = DynamicMessage.newBuilder(m_desc);
+        PigUtil.pigTuple2ProtoMessage(tuple, m_tuple2ProtoMap, builder, 0, tuple.size());
+        return builder.buildPartial();
+    }
+
+    private int next() {
+        int i = m_next;
+        m_next = (i + 1) % BenchMessages.SAMPLES;
+        return i;
+    }
+
+}
@@ -0,0 +1,127 @@
+/**
+ *
+ *  Copyright © 2010, 2011 Inadco, Inc. All rights reserved.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ *
+ */
+package com.inadco.ecoadapters.cascading;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import cascading.tuple.Fields;
+import cascading.tuple.Tuple;
+
+import com.google.protobuf.Descriptors.Descriptor;
+import com.google.protobuf.DynamicMessage;
+import com.google.protobuf.Message;
+import com.inadco.ecoadapters.bench.BenchMessages;
+
+/**
+ * {@link CascadingTupleMap} conversions. Lives in the cascading package since
+ * the map is package private.
+ * 
+ * @author dmitriy
+ * 
+ */
+@State(Scope.Thread)
+public class CascadingTupleMapBenchmark {
+
+    @Param({ BenchMessages.NARROW, BenchMessages.WIDE, BenchMessages.NESTED, BenchMessages.REPEATED })
+    public String             shape;
+
+    private Descriptor        m_desc;
+    private CascadingTupleMap m_tupleMap;
+    private Message[]         m_msgs;
+    private byte[][]          m_msgBytes;
+    private Tuple             m_holder;
+    private int               m_next;
+
+    @Setup
+    public void setup() throws Exception {
+        m_desc = BenchMessages.getDescriptor(shape);
+        m_tupleMap = new CascadingTupleMap(m_desc);
+        m_msgs = BenchMessages.sampleMessages(shape, BenchMessages.SAMPLES);
+        m_msgBytes = new byte[m_msgs.length][];
+        for (int i = 0; i < m_msgs.length; i++)
+            m_msgBytes[i] = m_msgs[i].toByteArray();
+        m_holder = Tuple.size(m_desc.getFields().size());
+    }
+
+    /**
+     * the way the scheme used to source records: parse and convert.
+     */
+    @Benchmark
+    public Tuple parseAndProto2T() throws Exception {
+        byte[] bytes = m_msgBytes[next()];
+        return m_tupleMap.proto2T(DynamicMessage.parseFrom(m_desc, bytes), m_holder);
+    }
+
+    @Benchmark
+    public Tuple proto2T() throws Exception {
+        return m_tupleMap.proto2T(m_msgs[next()], m_holder);
+    }
+
+    @Benchmark
+    public Tuple wire2T() throws Exception {
+        byte[] bytes = m_msgBytes[next()];
+        return m_tupleMap.proto2T(bytes, 0, bytes.length, m_holder);
+    }
+
+    private int next() {
+        int i = m_next;
+        m_next = (i + 1) % BenchMessages.SAMPLES;
+        return i;
+    }
+
+    /**
+     * {@link CascadingTupleMap#t2proto(Tuple, Fields)}. No repeated shape here
+     * since t2proto doesn't take repeated messages back in the form proto2T
+     * produces them.
+     */
+    @State(Scope.Thread)
+    public static class T2Proto {
+
+        @Param({ BenchMessages.NARROW, BenchMessages.WIDE, BenchMessages.NESTED })
+        public String             shape;
+
+        private CascadingTupleMap m_tupleMap;
+        private Fields            m_fields;
+        private Tuple[]           m_tuples;
+        private int               m_next;
+
+        @Setup
+        public void setup() throws Exception {
+            Descriptor desc = BenchMessages.getDescriptor(shape);
+            m_tupleMap = new CascadingTupleMap(desc);
+            m_fields = new Fields(m_tupleMap.getFieldNames());
+            Message[] msgs = BenchMessages.sampleMessages(shape, BenchMessages.SAMPLES);
+            m_tuples = new Tuple[msgs.length];
+            for (int i = 0; i < msgs.length; i++)
+                m_tuples[i] = m_tupleMap.proto2T(msgs[i], Tuple.size(desc.getFields().size()));
+        }
+
+        @Benchmark
+        public Message t2proto() throws Exception {
+            int i = m_next;
+            m_next = (i + 1) % BenchMessages.SAMPLES;
+            return m_tupleMap.t2proto(m_tuples[i], m_fields).buildPartial();
+        }
+    }
+
+}